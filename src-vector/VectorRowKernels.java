@@ -0,0 +1,127 @@
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/*
+ * Row kernels written with the incubating Vector API, processing as many columns at a time as
+ * the platform's preferred vector holds, with masked loads and stores for the columns left over
+ * at the end of a row.
+ *
+ * This class needs JDK 16 or later, so it lives outside src and is compiled separately:
+ *
+ *   javac --release 17 --add-modules jdk.incubator.vector -cp bin -d bin src-vector/VectorRowKernels.java
+ *
+ * and used by running with --add-modules jdk.incubator.vector. SeamCarver loads it by name and
+ * falls back to ScalarRowKernels when it is missing or the module is not available
+ */
+class VectorRowKernels implements RowKernels {
+	private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+	
+	// The distance kernel works on longs, with the energies loaded into int vectors of the same
+	// number of lanes, and the parent offsets stored from the low lanes of a byte vector of at
+	// least 64 bits, the smallest there is
+	private static final VectorSpecies<Long> LONGS = LongVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Integer> LONG_ENERGIES =
+			VectorSpecies.of(int.class, VectorShape.forBitSize(LONGS.vectorBitSize() / 2));
+	private static final VectorSpecies<Byte> PARENTS =
+			VectorSpecies.of(byte.class, VectorShape.forBitSize(Math.max(64, LONGS.length() * 8)));
+	private static final VectorMask<Byte> ALL_PARENTS = PARENTS.indexInRange(0, LONGS.length());
+	
+	@Override
+	public void energyInterior(int[] pixels, int center, int top, int bottom, int colFrom, int colTo, int[] dst, int dstOffset){
+		int col = colFrom;
+		int bound = colFrom + INTS.loopBound(colTo - colFrom);
+		
+		for(; col < bound; col += INTS.length()){
+			IntVector right = IntVector.fromArray(INTS, pixels, center + col+1);
+			IntVector left = IntVector.fromArray(INTS, pixels, center + col-1);
+			IntVector above = IntVector.fromArray(INTS, pixels, top + col);
+			IntVector below = IntVector.fromArray(INTS, pixels, bottom + col);
+			
+			gradient(right, left).add(gradient(above, below)).intoArray(dst, dstOffset + col);
+		}
+		
+		if(col < colTo){
+			VectorMask<Integer> mask = INTS.indexInRange(col, colTo);
+			
+			IntVector right = IntVector.fromArray(INTS, pixels, center + col+1, mask);
+			IntVector left = IntVector.fromArray(INTS, pixels, center + col-1, mask);
+			IntVector above = IntVector.fromArray(INTS, pixels, top + col, mask);
+			IntVector below = IntVector.fromArray(INTS, pixels, bottom + col, mask);
+			
+			gradient(right, left).add(gradient(above, below)).intoArray(dst, dstOffset + col, mask);
+		}
+	}
+	
+	/*
+	 * Returns the sums of the squared differences of the red, green and blue components of two
+	 * vectors of packed colors
+	 */
+	private static IntVector gradient(IntVector minuend, IntVector subtrahend){
+		IntVector red = channel(minuend, 16).sub(channel(subtrahend, 16));
+		IntVector green = channel(minuend, 8).sub(channel(subtrahend, 8));
+		IntVector blue = channel(minuend, 0).sub(channel(subtrahend, 0));
+		
+		return red.mul(red).add(green.mul(green)).add(blue.mul(blue));
+	}
+	
+	private static IntVector channel(IntVector colors, int shift){
+		return colors.lanewise(VectorOperators.ASHR, shift).and(0xFF);
+	}
+	
+	@Override
+	public void relax(long[] previous, long[] current, int[] energies, byte[] parents, int rowStart, int colFrom, int colTo){
+		int c = colFrom;
+		int bound = colFrom + LONGS.loopBound(colTo - colFrom);
+		
+		for(; c < bound; c += LONGS.length()){
+			LongVector left = LongVector.fromArray(LONGS, previous, c);
+			LongVector middle = LongVector.fromArray(LONGS, previous, c+1);
+			LongVector right = LongVector.fromArray(LONGS, previous, c+2);
+			LongVector energy = (LongVector) IntVector.fromArray(LONG_ENERGIES, energies, rowStart + c)
+					.convertShape(VectorOperators.I2L, LONGS, 0);
+			
+			// Same order of comparisons as the scalar kernel, so that ties resolve the same way
+			VectorMask<Long> takeLeft = left.compare(VectorOperators.LE, middle);
+			LongVector minDist = middle.blend(left, takeLeft);
+			VectorMask<Long> takeRight = right.compare(VectorOperators.LT, minDist);
+			minDist = minDist.blend(right, takeRight);
+			
+			minDist.add(energy).intoArray(current, c+1);
+			storeParents(takeLeft, takeRight, parents, rowStart + c, ALL_PARENTS);
+		}
+		
+		if(c < colTo){
+			VectorMask<Long> mask = LONGS.indexInRange(c, colTo);
+			
+			LongVector left = LongVector.fromArray(LONGS, previous, c, mask);
+			LongVector middle = LongVector.fromArray(LONGS, previous, c+1, mask);
+			LongVector right = LongVector.fromArray(LONGS, previous, c+2, mask);
+			LongVector energy = (LongVector) IntVector.fromArray(LONG_ENERGIES, energies, rowStart + c, mask.cast(LONG_ENERGIES))
+					.convertShape(VectorOperators.I2L, LONGS, 0);
+			
+			VectorMask<Long> takeLeft = left.compare(VectorOperators.LE, middle);
+			LongVector minDist = middle.blend(left, takeLeft);
+			VectorMask<Long> takeRight = right.compare(VectorOperators.LT, minDist);
+			minDist = minDist.blend(right, takeRight);
+			
+			minDist.add(energy).intoArray(current, c+1, mask);
+			storeParents(takeLeft, takeRight, parents, rowStart + c, PARENTS.indexInRange(c, colTo));
+		}
+	}
+	
+	/*
+	 * Stores the parent offsets chosen by the comparison masks, -1 for the left predecessor and 1
+	 * for the right one, to the parent lanes set in mask. The offsets are worked out in long lanes
+	 * and narrowed into the low lanes of a byte vector, which is much faster than casting the
+	 * masks to byte lanes
+	 */
+	private static void storeParents(VectorMask<Long> takeLeft, VectorMask<Long> takeRight, byte[] parents, int offset, VectorMask<Byte> mask){
+		LongVector offsets = LongVector.zero(LONGS).blend(-1, takeLeft).blend(1, takeRight);
+		((ByteVector) offsets.convertShape(VectorOperators.L2B, PARENTS, 0)).intoArray(parents, offset, mask);
+	}
+}
@@ -0,0 +1,382 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+/*
+ * Carves every image in a directory to the same size, without a display. Run with
+ *
+ *   java BatchCarver <input directory> <output directory> <width> <height> [threads]
+ *
+ * Images are decoded, carved and encoded by separate threads, handing images on through bounded
+ * queues, so that reading and writing files overlaps with carving and memory use stays bounded
+ * however many images there are. The carve queue holds two images per carving thread, so that the
+ * carvers always have the next image ready while a decoder is busy. Each carving thread keeps one
+ * carver and resets it for every image, so its buffers are only allocated for the largest image.
+ * Images would have to be enlarged more than CarveServer.MAX_UPSCALE times in either dimension
+ * to reach the size count as failed, as the server refuses them.
+ *
+ * Carved images are written with the name they were read with, except that GIF images are
+ * written as PNG. Images are written straight through ImageIO and RasterFile rather than
+ * Picture.save, which only prints write errors, so that an image that could not be written counts
+ * as failed. The output directory must not be the input directory, so that no image is overwritten
+ * by its carved copy. Each image's timings are printed once it is written, and the overall throughput at
+ * the end
+ */
+public class BatchCarver {
+	// Extensions of the files read from the input directory
+	private static final String[] EXTENSIONS = {"png", "jpg", "jpeg", "gif", RasterFile.EXTENSION};
+	
+	private final File[] inputs;
+	private final File outputDirectory;
+	private final int width;
+	private final int height;
+	private final int carvers;
+	private final int decoders;
+	private final int encoders;
+	
+	// Images decoded and waiting to be carved, and carved and waiting to be encoded. A job without
+	// a file tells the thread taking it that its stage is finished
+	private final BlockingQueue<Job> carveQueue;
+	private final BlockingQueue<Job> encodeQueue;
+	
+	// Next input to decode, and the threads of the first two stages still running
+	private final AtomicInteger nextInput = new AtomicInteger();
+	private final AtomicInteger runningDecoders;
+	private final AtomicInteger runningCarvers;
+	
+	private final AtomicInteger failures = new AtomicInteger();
+	
+	/*
+	 * An image on its way through the stages, with the time each stage took on it
+	 */
+	private static final class Job {
+		final File file;
+		final int originalWidth;
+		final int originalHeight;
+		Picture picture;
+		long decodeNanos;
+		long carveNanos;
+		
+		Job(File file, Picture picture, long decodeNanos){
+			this.file = file;
+			this.picture = picture;
+			this.originalWidth = (picture == null) ? 0 : picture.width();
+			this.originalHeight = (picture == null) ? 0 : picture.height();
+			this.decodeNanos = decodeNanos;
+		}
+	}
+	
+	private static final Job END = new Job(null, null, 0);
+	
+	// Create a batch carving the given images to the given size, with the given number of
+	// carving threads and a quarter as many decoding and encoding threads, at least one each
+	public BatchCarver(File[] inputs, File outputDirectory, int width, int height, int threads){
+		if(width < 1 || height < 1)
+			throw new IllegalArgumentException("Dimensions must be positive");
+		
+		if(threads < 1)
+			throw new IllegalArgumentException("At least one thread is needed");
+		
+		this.inputs = inputs.clone();
+		this.outputDirectory = outputDirectory;
+		this.width = width;
+		this.height = height;
+		this.carvers = threads;
+		this.decoders = Math.max(1, threads / 4);
+		this.encoders = Math.max(1, threads / 4);
+		this.carveQueue = new ArrayBlockingQueue<Job>(2 * carvers);
+		this.encodeQueue = new ArrayBlockingQueue<Job>(2 * carvers);
+		this.runningDecoders = new AtomicInteger(decoders);
+		this.runningCarvers = new AtomicInteger(carvers);
+	}
+	
+	/*
+	 * Carves all images, returning once every one of them is written or has failed. Returns the
+	 * number of images that failed
+	 */
+	public int run() throws InterruptedException{
+		Thread[] threads = new Thread[decoders + carvers + encoders];
+		int t = 0;
+		
+		for(int i = 0; i < decoders; i++){
+			threads[t++] = new Thread(new Runnable(){
+				@Override
+				public void run(){
+					decode();
+				}
+			}, "decoder-" + i);
+		}
+		for(int i = 0; i < carvers; i++){
+			threads[t++] = new Thread(new Runnable(){
+				@Override
+				public void run(){
+					carve();
+				}
+			}, "carver-" + i);
+		}
+		for(int i = 0; i < encoders; i++){
+			threads[t++] = new Thread(new Runnable(){
+				@Override
+				public void run(){
+					encode();
+				}
+			}, "encoder-" + i);
+		}
+		
+		for(Thread thread : threads){
+			thread.start();
+		}
+		for(Thread thread : threads){
+			thread.join();
+		}
+		return failures.get();
+	}
+	
+	/*
+	 * Decodes inputs until there are none left, then the last decoder to finish tells every
+	 * carver to stop. An image that cannot be decoded, even for lack of memory, counts as failed
+	 */
+	private void decode(){
+		try{
+			for(int i = nextInput.getAndIncrement(); i < inputs.length; i = nextInput.getAndIncrement()){
+				long start = System.nanoTime();
+				Picture picture;
+				
+				try{
+					picture = new Picture(inputs[i]);
+				} catch(Throwable e){
+					fail(inputs[i], e);
+					continue;
+				}
+				carveQueue.put(new Job(inputs[i], picture, System.nanoTime() - start));
+			}
+		} catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		} finally{
+			if(runningDecoders.decrementAndGet() == 0)
+				end(carveQueue, carvers);
+		}
+	}
+	
+	/*
+	 * Carves decoded images until told to stop, then the last carver to finish tells every
+	 * encoder to stop. An image that cannot be carved, even for lack of memory, or that would have
+	 * to be enlarged too much, counts as failed
+	 */
+	private void carve(){
+		SeamCarver carver = null;
+		
+		try{
+			for(Job job = carveQueue.take(); job != END; job = carveQueue.take()){
+				long start = System.nanoTime();
+				
+				try{
+					if(width > (long) CarveServer.MAX_UPSCALE * job.originalWidth || height > (long) CarveServer.MAX_UPSCALE * job.originalHeight)
+						throw new IllegalArgumentException("Images can be enlarged at most " + CarveServer.MAX_UPSCALE + " times in each dimension");
+					
+					if(carver == null)
+						carver = new SeamCarver(job.picture);
+					else
+						carver.reset(job.picture);
+					
+					carver.resize(width, height);
+					job.picture = carver.picture();
+				} catch(Throwable e){
+					// Start over with a new carver, so that one left half carved or holding
+					// buffers too large to allocate again is not kept
+					carver = null;
+					fail(job.file, e);
+					continue;
+				}
+				job.carveNanos = System.nanoTime() - start;
+				encodeQueue.put(job);
+			}
+		} catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		} finally{
+			if(runningCarvers.decrementAndGet() == 0)
+				end(encodeQueue, encoders);
+		}
+	}
+	
+	/*
+	 * Encodes carved images until told to stop, printing each image's timings
+	 */
+	private void encode(){
+		try{
+			for(Job job = encodeQueue.take(); job != END; job = encodeQueue.take()){
+				long start = System.nanoTime();
+				
+				try{
+					write(job.picture, output(job.file));
+				} catch(Throwable e){
+					fail(job.file, e);
+					continue;
+				}
+				long encodeNanos = System.nanoTime() - start;
+				
+				System.out.printf("%-32s %5dx%-5d -> %5dx%-5d  decode %8.1f ms  carve %8.1f ms  encode %8.1f ms%n",
+						job.file.getName(), job.originalWidth, job.originalHeight, width, height,
+						job.decodeNanos / 1e6, job.carveNanos / 1e6, encodeNanos / 1e6);
+			}
+		} catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private void fail(File file, Throwable e){
+		failures.incrementAndGet();
+		System.err.printf("%s failed: %s%n", file.getName(), e);
+	}
+	
+	/*
+	 * Tells the given number of threads taking from the queue that their stage is finished. Runs
+	 * when a stage's last thread stops for any reason, so waits for room even if interrupted, or
+	 * the next stage would wait for its end forever
+	 */
+	private static void end(BlockingQueue<Job> queue, int threads){
+		boolean interrupted = false;
+		
+		for(int i = 0; i < threads; i++){
+			while(true){
+				try{
+					queue.put(END);
+					break;
+				} catch(InterruptedException e){
+					interrupted = true;
+				}
+			}
+		}
+		
+		if(interrupted)
+			Thread.currentThread().interrupt();
+	}
+	
+	/*
+	 * Returns the file a carved image read from the given file is written to
+	 */
+	private File output(File input){
+		String name = input.getName();
+		int dot = name.lastIndexOf('.');
+		String extension = name.substring(dot + 1);
+		
+		if(extension.equalsIgnoreCase("gif"))
+			name = name.substring(0, dot) + ".png";
+		
+		return new File(outputDirectory, name);
+	}
+	
+	/*
+	 * Writes the picture to the given file in the format its extension names, throwing if the
+	 * file cannot be written or no writer handles the format
+	 */
+	private static void write(Picture picture, File file) throws IOException{
+		int width = picture.width();
+		int height = picture.height();
+		int[] row = new int[width];
+		String name = file.getName();
+		String extension = name.substring(name.lastIndexOf('.') + 1);
+		
+		if(RasterFile.isRasterFile(file)){
+			try(RasterFile raster = RasterFile.create(file, width, height)){
+				for(int r = 0; r < height; r++){
+					picture.getRGB(0, r, width, row, 0);
+					
+					// Raster files from pictures hold no alpha, like Picture.save writes them
+					for(int c = 0; c < width; c++){
+						row[c] &= 0x00FFFFFF;
+					}
+					raster.writeRows(r, 1, row, 0);
+				}
+			}
+			return;
+		}
+		
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		
+		for(int r = 0; r < height; r++){
+			picture.getRGB(0, r, width, row, 0);
+			image.setRGB(0, r, width, 1, row, 0, width);
+		}
+		
+		if(!ImageIO.write(image, extension.toLowerCase(), file))
+			throw new IOException("No image writer for " + extension + " files");
+	}
+	
+	/*
+	 * Returns the files in the given directory with an image extension, in name order
+	 */
+	private static File[] images(File directory){
+		File[] files = directory.listFiles();
+		
+		if(files == null)
+			throw new IllegalArgumentException("Not a readable directory: " + directory);
+		
+		int count = 0;
+		
+		for(File file : files){
+			if(file.isFile() && isImage(file))
+				files[count++] = file;
+		}
+		
+		File[] images = Arrays.copyOf(files, count);
+		Arrays.sort(images);
+		return images;
+	}
+	
+	private static boolean isImage(File file){
+		String name = file.getName();
+		String extension = name.substring(name.lastIndexOf('.') + 1);
+		
+		for(String e : EXTENSIONS){
+			if(e.equalsIgnoreCase(extension))
+				return true;
+		}
+		return false;
+	}
+	
+	public static void main(String[] args) throws InterruptedException, IOException{
+		if(args.length < 4){
+			System.err.println("Usage: java BatchCarver <input directory> <output directory> <width> <height> [threads]");
+			System.exit(2);
+		}
+		
+		// Nothing is shown, so never connect to a display even if one is available
+		if(System.getProperty("java.awt.headless") == null)
+			System.setProperty("java.awt.headless", "true");
+		
+		File inputDirectory = new File(args[0]);
+		File[] inputs = images(inputDirectory);
+		File outputDirectory = new File(args[1]);
+		int width = Integer.parseInt(args[2]);
+		int height = Integer.parseInt(args[3]);
+		int threads = (args.length > 4) ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+		
+		// Compared by canonical path, so that links and relative paths naming the input directory
+		// are caught too
+		if(outputDirectory.getCanonicalFile().equals(inputDirectory.getCanonicalFile()))
+			throw new IllegalArgumentException("The output directory must not be the input directory: " + outputDirectory);
+		
+		if(!outputDirectory.isDirectory() && !outputDirectory.mkdirs())
+			throw new IllegalArgumentException("Could not create the output directory: " + outputDirectory);
+		
+		BatchCarver batch = new BatchCarver(inputs, outputDirectory, width, height, threads);
+		
+		long start = System.nanoTime();
+		int failures = batch.run();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		int carved = inputs.length - failures;
+		
+		System.out.printf("%d images carved to %dx%d in %.2f s with %d threads, %.2f images/s, %d failed%n",
+				carved, width, height, seconds, threads, carved / seconds, failures);
+		
+		if(failures > 0)
+			System.exit(1);
+	}
+}
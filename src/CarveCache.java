@@ -0,0 +1,280 @@
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/*
+ * A thread-safe cache of carved pictures in memory, for services where a few pictures are asked
+ * for at the same sizes again and again. Results are keyed by the picture's digest, the target
+ * dimensions, and the energy function and cost mode they were carved with, and are returned as
+ * read-only pictures shared by every caller asking for them.
+ *
+ * The cache is bounded by the total pixel count of its results, evicting the least recently used
+ * first. Results larger than the whole bound are returned without being cached. Requests for a
+ * result that is being carved wait for that carve instead of starting their own, so concurrent
+ * identical requests carve only once
+ */
+public class CarveCache {
+	private final long maxPixels;
+	
+	// Cached results in order of use, least recent first, and the carves still running. Both
+	// are guarded by the cache's lock, which is never held while carving
+	private final LinkedHashMap<Key, Picture> results = new LinkedHashMap<Key, Picture>(16, 0.75f, true);
+	private final HashMap<Key, FutureTask<Picture>> carving = new HashMap<Key, FutureTask<Picture>>();
+	private long pixels;
+	
+	private long hits;
+	private long misses;
+	private long coalesced;
+	private long evictions;
+	
+	// Create a cache keeping results of up to maxPixels pixels in total
+	public CarveCache(long maxPixels){
+		if(maxPixels < 0)
+			throw new IllegalArgumentException("Cache size must not be negative");
+		
+		this.maxPixels = maxPixels;
+	}
+	
+	/*
+	 * Returns the given picture carved to the given dimensions with the default energy function
+	 * and costs, carving it only if it is not cached. The picture is hashed to look it up
+	 */
+	public Picture carve(Picture picture, int width, int height){
+		return carve(SeamCache.key(picture), picture, width, height, new DualGradientEnergy(), SeamCarver.CostMode.BACKWARD);
+	}
+	
+	/*
+	 * Returns the given picture carved to the given dimensions with the given energy function and
+	 * cost mode, carving it only if it is not cached. The key identifies the picture's content,
+	 * like SeamCache.key does, and is taken on trust so that callers who already know it avoid
+	 * hashing the picture. The energy function is identified by its class name and radius
+	 */
+	public Picture carve(String key, final Picture picture, final int width, final int height, final EnergyFunction energyFunction, final SeamCarver.CostMode costMode){
+		if(key == null)
+			throw new NullPointerException("Null key given");
+		
+		if(picture == null)
+			throw new NullPointerException("Null picture given");
+		
+		if(energyFunction == null)
+			throw new NullPointerException("Null energy function given");
+		
+		if(costMode == null)
+			throw new NullPointerException("Null cost mode given");
+		
+		if(width < 1 || height < 1)
+			throw new IllegalArgumentException("Dimensions must be positive");
+		
+		Key resultKey = new Key(key, width, height, energyFunction, costMode);
+		FutureTask<Picture> task;
+		boolean owner = false;
+		
+		synchronized(this){
+			Picture result = results.get(resultKey);
+			
+			if(result != null){
+				hits++;
+				return result;
+			}
+			
+			task = carving.get(resultKey);
+			
+			if(task == null){
+				misses++;
+				owner = true;
+				task = new FutureTask<Picture>(new Callable<Picture>(){
+					@Override
+					public Picture call(){
+						return carveNow(picture, width, height, energyFunction, costMode);
+					}
+				});
+				carving.put(resultKey, task);
+			} else {
+				coalesced++;
+			}
+		}
+		
+		if(!owner)
+			return result(task);
+		
+		task.run();
+		Picture result = null;
+		
+		// A failed carve is forgotten, so that a later request tries again
+		try{
+			result = result(task);
+		} finally{
+			synchronized(this){
+				carving.remove(resultKey);
+				
+				if(result != null)
+					store(resultKey, result);
+			}
+		}
+		return result;
+	}
+	
+	/*
+	 * Returns the number of requests answered from the cache
+	 */
+	public synchronized long hits(){
+		return hits;
+	}
+	
+	/*
+	 * Returns the number of requests that carved their result
+	 */
+	public synchronized long misses(){
+		return misses;
+	}
+	
+	/*
+	 * Returns the number of requests that waited for an identical request's carve
+	 */
+	public synchronized long coalesced(){
+		return coalesced;
+	}
+	
+	/*
+	 * Returns the number of results evicted to keep the cache within its bound
+	 */
+	public synchronized long evictions(){
+		return evictions;
+	}
+	
+	/*
+	 * Returns the number of results in the cache
+	 */
+	public synchronized int size(){
+		return results.size();
+	}
+	
+	/*
+	 * Returns the total pixel count of the results in the cache
+	 */
+	public synchronized long pixels(){
+		return pixels;
+	}
+	
+	/*
+	 * Empties the cache. Carves still running are not affected
+	 */
+	public synchronized void clear(){
+		results.clear();
+		pixels = 0;
+	}
+	
+	private static Picture carveNow(Picture picture, int width, int height, EnergyFunction energyFunction, SeamCarver.CostMode costMode){
+		SeamCarver carver = new SeamCarver(picture, energyFunction, 1);
+		carver.setCostMode(costMode);
+		carver.resize(width, height);
+		
+		// Never share the caller's own picture, which the carver returns when nothing was carved
+		Picture result = carver.picture();
+		
+		if(result == picture)
+			result = new Picture(picture);
+		
+		result.setReadOnly();
+		return result;
+	}
+	
+	/*
+	 * Adds a result to the cache, evicting the least recently used results until it fits
+	 */
+	private void store(Key key, Picture result){
+		long weight = (long) result.width() * result.height();
+		
+		if(weight > maxPixels)
+			return;
+		
+		results.put(key, result);
+		pixels += weight;
+		
+		Iterator<Map.Entry<Key, Picture>> eldest = results.entrySet().iterator();
+		
+		while(pixels > maxPixels){
+			Picture evicted = eldest.next().getValue();
+			eldest.remove();
+			pixels -= (long) evicted.width() * evicted.height();
+			evictions++;
+		}
+	}
+	
+	/*
+	 * Returns the result of a finished or running carve, waiting for it if needed. Failures are
+	 * rethrown as they were thrown by the carve. Waiting is not interrupted, but an interrupt
+	 * received while waiting is kept for the caller to see
+	 */
+	private static Picture result(FutureTask<Picture> task){
+		boolean interrupted = false;
+		
+		try{
+			while(true){
+				try{
+					return task.get();
+				} catch(InterruptedException e){
+					interrupted = true;
+				}
+			}
+		} catch(ExecutionException e){
+			Throwable cause = e.getCause();
+			
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			
+			if(cause instanceof Error)
+				throw (Error) cause;
+			
+			throw new IllegalStateException(cause);
+		} finally{
+			if(interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+	
+	/*
+	 * The picture digest, dimensions, energy function and cost mode a result was carved for
+	 */
+	private static final class Key {
+		private final String digest;
+		private final int width;
+		private final int height;
+		private final String energyFunction;
+		private final int radius;
+		private final SeamCarver.CostMode costMode;
+		
+		Key(String digest, int width, int height, EnergyFunction energyFunction, SeamCarver.CostMode costMode){
+			this.digest = digest;
+			this.width = width;
+			this.height = height;
+			this.energyFunction = energyFunction.getClass().getName();
+			this.radius = energyFunction.radius();
+			this.costMode = costMode;
+		}
+		
+		@Override
+		public boolean equals(Object other){
+			if(!(other instanceof Key))
+				return false;
+			
+			Key that = (Key) other;
+			return digest.equals(that.digest) && width == that.width && height == that.height
+					&& energyFunction.equals(that.energyFunction) && radius == that.radius && costMode == that.costMode;
+		}
+		
+		@Override
+		public int hashCode(){
+			int hash = digest.hashCode();
+			hash = 31 * hash + width;
+			hash = 31 * hash + height;
+			hash = 31 * hash + energyFunction.hashCode();
+			hash = 31 * hash + radius;
+			return 31 * hash + costMode.hashCode();
+		}
+	}
+}
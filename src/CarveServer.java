@@ -0,0 +1,398 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/*
+ * An embedded HTTP server that carves images. Run with
+ *
+ *   java CarveServer [port] [carving threads] [queue length]
+ *
+ * and carve an image with
+ *
+ *   curl --data-binary @chameleon.png -o carved.png "http://localhost:8080/carve?width=500&height=300"
+ *
+ * POST /carve takes a PNG, JPEG or GIF body and the target dimensions as query parameters, and
+ * answers with the carved image as PNG. Images can be shrunk to any size but at most doubled in
+ * each dimension, since the cost of inserting seams grows with the cube of the seams inserted.
+ * An image's dimensions are read from its header and checked before it is decoded, so a small
+ * body declaring a huge image is refused without decoding it. A request not carved within
+ * CARVE_TIMEOUT_SECONDS of being queued is cancelled and answered with 503 Service Unavailable,
+ * so that no request holds a carving thread for long. GET /metrics answers with request counts
+ * and latency histograms as plain text.
+ *
+ * Connections are served one thread each, virtual threads where the JVM has them (Java 21 on) and
+ * pooled platform threads otherwise, so slow clients only cost a parked thread. Decoding, carving
+ * and encoding, which are CPU-bound, are handed to a fixed pool of carving threads with a bounded
+ * queue, so that however many connections are open the cores are never oversubscribed. A request
+ * arriving while the queue is full is answered straight away with 429 Too Many Requests
+ */
+public class CarveServer implements Closeable {
+	// Largest request body accepted, largest number of pixels decoded or carved to, and largest
+	// factor an image is enlarged by in each dimension
+	static final int MAX_BODY_BYTES = 64 << 20;
+	static final long MAX_PIXELS = 1L << 26;
+	static final int MAX_UPSCALE = 2;
+	
+	// Longest a request may wait for and use a carving thread before it is cancelled
+	static final long CARVE_TIMEOUT_SECONDS = 60;
+	
+	// Largest carver buffers kept for reuse, in pixels. Carvers grown past it by larger images
+	// are dropped once done, so the memory held between requests stays bounded
+	static final long MAX_POOLED_PIXELS = 1L << 22;
+	
+	private final HttpServer server;
+	private final ExecutorService connections;
+	private final ThreadPoolExecutor carvers;
+	private final CarverPool carverPool;
+	
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong timedOut = new AtomicLong();
+	
+	// Time from receiving a carve request to sending its carved image, time spent waiting for a
+	// carving thread, and time spent decoding, carving and encoding
+	private final LatencyHistogram latency = new LatencyHistogram("latency");
+	private final LatencyHistogram queueWait = new LatencyHistogram("queue wait");
+	private final LatencyHistogram carveTime = new LatencyHistogram("carve");
+	
+	// Create a server listening on the given port, or any free port if it is 0, carving with the
+	// given number of threads and queueing up to queueLength requests for them
+	public CarveServer(int port, int threads, int queueLength) throws IOException{
+		if(threads < 1)
+			throw new IllegalArgumentException("At least one carving thread is needed");
+		
+		if(queueLength < 1)
+			throw new IllegalArgumentException("Queue length must be at least 1");
+		
+		this.connections = connectionExecutor();
+		this.carvers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueLength), new ThreadPoolExecutor.AbortPolicy());
+		this.carverPool = new CarverPool(threads, 1, MAX_POOLED_PIXELS);
+		
+		this.server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/carve", new HttpHandler(){
+			@Override
+			public void handle(HttpExchange exchange) throws IOException{
+				handleCarve(exchange);
+			}
+		});
+		server.createContext("/metrics", new HttpHandler(){
+			@Override
+			public void handle(HttpExchange exchange) throws IOException{
+				handleMetrics(exchange);
+			}
+		});
+		server.setExecutor(connections);
+		server.start();
+	}
+	
+	/*
+	 * Returns the port the server listens on
+	 */
+	public int port(){
+		return server.getAddress().getPort();
+	}
+	
+	/*
+	 * Returns the request counts and latency histograms served by GET /metrics
+	 */
+	public String metrics(){
+		StringBuilder out = new StringBuilder();
+		out.append(String.format("requests %d, rejected %d, failed %d, timed out %d, queued %d%n",
+				requests.get(), rejected.get(), failed.get(), timedOut.get(), carvers.getQueue().size()));
+		
+		latency.appendTo(out);
+		queueWait.appendTo(out);
+		carveTime.appendTo(out);
+		return out.toString();
+	}
+	
+	/*
+	 * Stops the server, abandoning requests still being served
+	 */
+	@Override
+	public void close(){
+		server.stop(0);
+		carvers.shutdownNow();
+		connections.shutdownNow();
+		carverPool.close();
+	}
+	
+	/*
+	 * Returns an executor running each task on a new virtual thread, found by reflection so that
+	 * the server still runs on Java 8, or on a cached platform thread where there are none
+	 */
+	private static ExecutorService connectionExecutor(){
+		try{
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch(ReflectiveOperationException e){
+			return Executors.newCachedThreadPool();
+		}
+	}
+	
+	private void handleCarve(HttpExchange exchange) throws IOException{
+		long start = System.nanoTime();
+		requests.incrementAndGet();
+		
+		try{
+			if(!exchange.getRequestMethod().equals("POST")){
+				respond(exchange, 405, "Use POST with an image body\n");
+				return;
+			}
+			
+			final int width;
+			final int height;
+			
+			try{
+				width = intParameter(exchange, "width");
+				height = intParameter(exchange, "height");
+			} catch(IllegalArgumentException e){
+				respond(exchange, 400, e.getMessage() + "\n");
+				return;
+			}
+			
+			if(width < 1 || height < 1 || (long) width * height > MAX_PIXELS){
+				respond(exchange, 400, "Dimensions must be positive and at most " + MAX_PIXELS + " pixels\n");
+				return;
+			}
+			
+			final byte[] body = readBody(exchange.getRequestBody());
+			
+			if(body == null){
+				respond(exchange, 413, "Images must be at most " + MAX_BODY_BYTES + " bytes\n");
+				return;
+			}
+			
+			final long queued = System.nanoTime();
+			Future<byte[]> result;
+			
+			try{
+				result = carvers.submit(new Callable<byte[]>(){
+					@Override
+					public byte[] call() throws IOException{
+						long started = System.nanoTime();
+						queueWait.record(started - queued);
+						
+						try{
+							return carve(body, width, height);
+						} finally{
+							carveTime.record(System.nanoTime() - started);
+						}
+					}
+				});
+			} catch(RejectedExecutionException e){
+				rejected.incrementAndGet();
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				respond(exchange, 429, "Too many requests queued\n");
+				return;
+			}
+			
+			byte[] png;
+			
+			try{
+				png = result.get(CARVE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			} catch(TimeoutException e){
+				// Interrupts the carve, which stops at the next seam, or drops it if still queued
+				result.cancel(true);
+				timedOut.incrementAndGet();
+				respond(exchange, 503, "Carving took longer than " + CARVE_TIMEOUT_SECONDS + " s\n");
+				return;
+			} catch(InterruptedException e){
+				result.cancel(true);
+				Thread.currentThread().interrupt();
+				failed.incrementAndGet();
+				respond(exchange, 503, "Server is stopping\n");
+				return;
+			} catch(ExecutionException e){
+				Throwable cause = e.getCause();
+				
+				if(cause instanceof IllegalArgumentException){
+					respond(exchange, 400, cause.getMessage() + "\n");
+				} else {
+					failed.incrementAndGet();
+					respond(exchange, 500, "Carving failed: " + cause + "\n");
+				}
+				return;
+			}
+			
+			exchange.getResponseHeaders().set("Content-Type", "image/png");
+			exchange.sendResponseHeaders(200, png.length);
+			
+			try(OutputStream out = exchange.getResponseBody()){
+				out.write(png);
+			}
+			latency.record(System.nanoTime() - start);
+		} finally{
+			exchange.close();
+		}
+	}
+	
+	private void handleMetrics(HttpExchange exchange) throws IOException{
+		try{
+			respond(exchange, 200, metrics());
+		} finally{
+			exchange.close();
+		}
+	}
+	
+	/*
+	 * Decodes the given image, carves it to the given dimensions and encodes the result as PNG.
+	 * Runs on a carving thread
+	 */
+	private byte[] carve(byte[] body, int width, int height) throws IOException{
+		BufferedImage decoded = decode(body, width, height);
+		int sourceWidth = decoded.getWidth();
+		int sourceHeight = decoded.getHeight();
+		int[] pixels = decoded.getRGB(0, 0, sourceWidth, sourceHeight, null, 0, sourceWidth);
+		Picture picture = new Picture(sourceWidth, sourceHeight);
+		picture.setPixels(pixels);
+		
+		SeamCarver carver = carverPool.acquire(picture);
+		Picture carved;
+		
+		try{
+			carver.resize(width, height);
+			carved = carver.picture();
+		} finally{
+			carverPool.release(carver);
+		}
+		
+		pixels = (pixels.length >= width * height) ? pixels : new int[width * height];
+		carved.getPixels(pixels);
+		
+		BufferedImage encoded = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		encoded.setRGB(0, 0, width, height, pixels, 0, width);
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(encoded, "png", out);
+		return out.toByteArray();
+	}
+	
+	/*
+	 * Decodes the given image after checking the dimensions in its header, so that images too
+	 * large to carve, or to carve to the given dimensions, are refused before they are decoded
+	 */
+	private static BufferedImage decode(byte[] body, int width, int height) throws IOException{
+		ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(body));
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+		
+		if(!readers.hasNext())
+			throw new IllegalArgumentException("Body is not a PNG, JPEG or GIF image");
+		
+		ImageReader reader = readers.next();
+		
+		try{
+			reader.setInput(input, true, true);
+			
+			int sourceWidth;
+			int sourceHeight;
+			
+			try{
+				sourceWidth = reader.getWidth(0);
+				sourceHeight = reader.getHeight(0);
+			} catch(IOException e){
+				throw new IllegalArgumentException("Body has an unreadable image header");
+			}
+			
+			if((long) sourceWidth * sourceHeight > MAX_PIXELS)
+				throw new IllegalArgumentException("Images must be at most " + MAX_PIXELS + " pixels");
+			
+			if(width > (long) MAX_UPSCALE * sourceWidth || height > (long) MAX_UPSCALE * sourceHeight)
+				throw new IllegalArgumentException("Images can be enlarged at most " + MAX_UPSCALE + " times in each dimension");
+			
+			return reader.read(0);
+		} finally{
+			reader.dispose();
+			input.close();
+		}
+	}
+	
+	/*
+	 * Reads the whole request body, or returns null if it is longer than MAX_BODY_BYTES
+	 */
+	private static byte[] readBody(InputStream in) throws IOException{
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[64 << 10];
+		
+		for(int n = in.read(buffer); n >= 0; n = in.read(buffer)){
+			if(body.size() + n > MAX_BODY_BYTES)
+				return null;
+			
+			body.write(buffer, 0, n);
+		}
+		return body.toByteArray();
+	}
+	
+	/*
+	 * Returns the value of the given integer query parameter
+	 */
+	private static int intParameter(HttpExchange exchange, String name){
+		String query = exchange.getRequestURI().getRawQuery();
+		
+		if(query != null){
+			for(String parameter : query.split("&")){
+				int equals = parameter.indexOf('=');
+				
+				if(equals > 0 && parameter.substring(0, equals).equals(name)){
+					try{
+						return Integer.parseInt(parameter.substring(equals + 1));
+					} catch(NumberFormatException e){
+						throw new IllegalArgumentException("Parameter " + name + " is not an integer");
+					}
+				}
+			}
+		}
+		throw new IllegalArgumentException("Missing parameter " + name);
+	}
+	
+	private static void respond(HttpExchange exchange, int status, String text) throws IOException{
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		
+		try(OutputStream out = exchange.getResponseBody()){
+			out.write(bytes);
+		}
+	}
+	
+	public static void main(String[] args) throws IOException{
+		// Nothing is shown, so never connect to a display even if one is available
+		if(System.getProperty("java.awt.headless") == null)
+			System.setProperty("java.awt.headless", "true");
+		
+		int port = (args.length > 0) ? Integer.parseInt(args[0]) : 8080;
+		int threads = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		int queueLength = (args.length > 2) ? Integer.parseInt(args[2]) : 2 * threads;
+		
+		CarveServer server = new CarveServer(port, threads, queueLength);
+		System.out.printf("Carving on http://localhost:%d/carve with %d threads and a queue of %d%n", server.port(), threads, queueLength);
+	}
+}
@@ -0,0 +1,97 @@
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/*
+ * A thread-safe pool of seam carvers for services that carve many pictures. A request acquires
+ * a carver reset to its picture, and releases it when it is done, so that the carver's buffers
+ * are reused by later requests instead of being allocated for each one.
+ *
+ * Idle carvers are kept in a bounded array-backed queue, which allocates nothing when carvers
+ * are acquired and released. When no carver is idle a new one is created, and carvers released
+ * while the queue is full are dropped, so the pool never blocks. Carvers whose buffers grew past
+ * the pool's pixel bound are dropped too, so that one large picture does not pin its buffers for
+ * the life of the pool. Dropped carvers are closed, so their threads go with them
+ */
+public class CarverPool implements Closeable {
+	private final ArrayBlockingQueue<SeamCarver> idle;
+	private final int parallelism;
+	private final long maxPixels;
+	
+	// Create a pool keeping up to maxIdle carvers, each computing full energy graphs on the
+	// calling thread
+	public CarverPool(int maxIdle){
+		this(maxIdle, 1);
+	}
+	
+	// Create a pool keeping up to maxIdle carvers, each computing full energy graphs with the
+	// given number of threads
+	public CarverPool(int maxIdle, int parallelism){
+		this(maxIdle, parallelism, Long.MAX_VALUE);
+	}
+	
+	// Create a pool keeping up to maxIdle carvers with buffers of at most maxPixels pixels, each
+	// computing full energy graphs with the given number of threads
+	public CarverPool(int maxIdle, int parallelism, long maxPixels){
+		if(maxIdle < 1)
+			throw new IllegalArgumentException("Pool must keep at least one idle carver");
+		
+		if(parallelism < 1)
+			throw new IllegalArgumentException("Parallelism must be at least 1");
+		
+		if(maxPixels < 1)
+			throw new IllegalArgumentException("Pool must keep carvers of at least one pixel");
+		
+		this.idle = new ArrayBlockingQueue<SeamCarver>(maxIdle);
+		this.parallelism = parallelism;
+		this.maxPixels = maxPixels;
+	}
+	
+	/*
+	 * Returns a carver for the given picture with the default energy function, cost mode and
+	 * incremental energy, reusing an idle carver if there is one. Settings a previous borrower
+	 * changed are put back to the defaults
+	 */
+	public SeamCarver acquire(Picture picture){
+		if(picture == null)
+			throw new NullPointerException("Null picture given");
+		
+		SeamCarver carver = idle.poll();
+		
+		if(carver == null)
+			return new SeamCarver(picture, parallelism);
+		
+		carver.restoreDefaults();
+		carver.reset(picture);
+		return carver;
+	}
+	
+	/*
+	 * Returns a carver to the pool, which drops it if the pool is full or its buffers are larger
+	 * than the pool keeps. The carver must not be used again by the caller
+	 */
+	public void release(SeamCarver carver){
+		if(carver == null)
+			throw new NullPointerException("Null carver given");
+		
+		if(carver.capacity() > maxPixels || !idle.offer(carver))
+			carver.close();
+	}
+	
+	/*
+	 * Closes the idle carvers and empties the pool. Carvers still acquired are closed when they
+	 * are released if the pool has no room for them, and the pool can still be used
+	 */
+	@Override
+	public void close(){
+		for(SeamCarver carver = idle.poll(); carver != null; carver = idle.poll()){
+			carver.close();
+		}
+	}
+	
+	/*
+	 * Returns the number of carvers currently idle in the pool
+	 */
+	public int idleCount(){
+		return idle.size();
+	}
+}
@@ -0,0 +1,16 @@
+/*
+ * The dual-gradient energy: the sum of the squared differences of the red, green and blue
+ * components of the pixels left and right of a pixel, plus the same for the pixels above and
+ * below it. This is the energy SeamCarver uses unless it is given another
+ */
+public class DualGradientEnergy implements EnergyFunction {
+	@Override
+	public int radius(){
+		return 1;
+	}
+	
+	@Override
+	public void energyRow(int[] pixels, int stride, int width, int height, int row, int colFrom, int colTo, int[] dst, int dstOffset){
+		SeamCarver.energyRow(pixels, stride, width, height, row, colFrom, colTo, dst, dstOffset);
+	}
+}
@@ -0,0 +1,26 @@
+/*
+ * A measure of how important each pixel of an image is, used by SeamCarver to find the seams
+ * least noticeable to remove. Implementations work on whole spans of rows of the carver's flat
+ * pixel buffer, so that they can keep intermediate values, like a luminance channel, in local
+ * variables from one column to the next instead of recomputing them for every pixel.
+ *
+ * The image wraps around at its borders: the column left of column 0 is the right-most column,
+ * and the row above row 0 is the bottom row. Horizontal seams are found on the transposed image,
+ * so an energy function must give the same energy to a pixel whether or not the image is
+ * transposed. Implementations must be safe to use from several threads at once
+ */
+public interface EnergyFunction {
+	/*
+	 * Returns how many pixels away, in either direction, a pixel can be and still affect another
+	 * pixel's energy. After a seam is removed, SeamCarver recomputes the energies within this
+	 * distance of the seam
+	 */
+	int radius();
+	
+	/*
+	 * Calculates the energies of the pixels from colFrom (inclusive) to colTo (exclusive) of the
+	 * given row of a width-by-height image, whose pixel at (row, col) is pixels[row * stride + col].
+	 * The energy of column c is written to dst[dstOffset + c]
+	 */
+	void energyRow(int[] pixels, int stride, int width, int height, int row, int colFrom, int colTo, int[] dst, int dstOffset);
+}
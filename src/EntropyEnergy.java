@@ -0,0 +1,131 @@
+import java.util.Arrays;
+
+/*
+ * A more expensive energy that also protects textured regions: the luminance gradient of a pixel
+ * plus the entropy of the luminances in the square window of the given radius around it. Smooth
+ * gradients have low entropy and busy textures high entropy, so seams prefer to pass through
+ * flat regions even when the textures have small gradients.
+ *
+ * Luminances are quantized into 16 levels for the entropy. The histogram of the window is kept
+ * as the window slides along a row, adding the column entering it and removing the one leaving
+ * it, so each pixel costs a few histogram updates rather than a pass over the whole window
+ */
+public class EntropyEnergy implements EnergyFunction {
+	// Radius of the window used when none is given, giving the 9x9 window of Avidan and Shamir
+	static final int DEFAULT_RADIUS = 4;
+	
+	private static final int LEVELS = 16;
+	
+	// The entropy is measured in units of 1/ENTROPY_SCALE bits. At most 4 bits with 16 levels,
+	// it then spans about the same range as the luminance gradient
+	private static final int ENTROPY_SCALE = 128;
+	
+	private final int radius;
+	private final int windowSize;
+	
+	// count * log2(count) * ENTROPY_SCALE for every count a level can have in the window, rounded,
+	// so that the entropies are exact integer arithmetic on these
+	private final long[] countLogs;
+	
+	// Histogram of the window, one per thread since energy bands are computed in parallel, so
+	// that computing energies allocates nothing once each thread has its own
+	private final ThreadLocal<int[]> histograms = new ThreadLocal<int[]>(){
+		@Override
+		protected int[] initialValue(){
+			return new int[LEVELS];
+		}
+	};
+	
+	public EntropyEnergy(){
+		this(DEFAULT_RADIUS);
+	}
+	
+	public EntropyEnergy(int radius){
+		if(radius < 1)
+			throw new IllegalArgumentException("Radius must be at least 1");
+		
+		this.radius = radius;
+		this.windowSize = (2 * radius + 1) * (2 * radius + 1);
+		this.countLogs = new long[windowSize + 1];
+		
+		for(int count = 1; count <= windowSize; count++){
+			countLogs[count] = Math.round(count * (Math.log(count) / Math.log(2)) * ENTROPY_SCALE);
+		}
+	}
+	
+	@Override
+	public int radius(){
+		return radius;
+	}
+	
+	@Override
+	public void energyRow(int[] pixels, int stride, int width, int height, int row, int colFrom, int colTo, int[] dst, int dstOffset){
+		if(colFrom >= colTo)
+			return;
+		
+		int[] histogram = histograms.get();
+		Arrays.fill(histogram, 0);
+		long countLogSum = 0;
+		
+		// Fill in the window around colFrom
+		for(int dr = -radius; dr <= radius; dr++){
+			int rowStart = wrap(row + dr, height) * stride;
+			
+			for(int dc = -radius; dc <= radius; dc++){
+				histogram[level(pixels[rowStart + wrap(colFrom + dc, width)])]++;
+			}
+		}
+		
+		for(int level = 0; level < LEVELS; level++){
+			countLogSum += countLogs[histogram[level]];
+		}
+		
+		int center = row * stride;
+		int top = wrap(row - 1, height) * stride;
+		int bottom = wrap(row + 1, height) * stride;
+		
+		for(int col = colFrom; col < colTo; col++){
+			if(col > colFrom){
+				// Slide the window one column right
+				int leaving = wrap(col - radius - 1, width);
+				int entering = wrap(col + radius, width);
+				
+				for(int dr = -radius; dr <= radius; dr++){
+					int rowStart = wrap(row + dr, height) * stride;
+					int out = level(pixels[rowStart + leaving]);
+					int in = level(pixels[rowStart + entering]);
+					
+					countLogSum += countLogs[histogram[out] - 1] - countLogs[histogram[out]];
+					histogram[out]--;
+					countLogSum += countLogs[histogram[in] + 1] - countLogs[histogram[in]];
+					histogram[in]++;
+				}
+			}
+			
+			// Entropy = log2(N) - sum(count * log2(count)) / N, scaled
+			long entropy = (countLogs[windowSize] - countLogSum) / windowSize;
+			
+			int left = (col == 0) ? width-1 : col-1;
+			int right = (col == width-1) ? 0 : col+1;
+			int gradient = Math.abs(LuminanceSobelEnergy.luminance(pixels[center + right]) - LuminanceSobelEnergy.luminance(pixels[center + left]))
+					+ Math.abs(LuminanceSobelEnergy.luminance(pixels[bottom + col]) - LuminanceSobelEnergy.luminance(pixels[top + col]));
+			
+			dst[dstOffset + col] = gradient + (int) entropy;
+		}
+	}
+	
+	/*
+	 * Returns the quantized luminance level of a packed color
+	 */
+	private static int level(int rgb){
+		return LuminanceSobelEnergy.luminance(rgb) >> 4;
+	}
+	
+	/*
+	 * Returns the index i wrapped into the range 0 to length-1
+	 */
+	private static int wrap(int i, int length){
+		i %= length;
+		return (i < 0) ? i + length : i;
+	}
+}
@@ -0,0 +1,131 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * A thread-safe histogram of latencies, with buckets whose bounds double from one microsecond up,
+ * so that it takes a fixed few hundred bytes however many latencies are recorded. Percentiles are
+ * reported as the upper bound of the bucket they fall in, so they are accurate to within a factor
+ * of two, which is enough to tell queueing apart from carving or a slow tail from a slow median
+ */
+public class LatencyHistogram {
+	// Bucket 0 counts latencies under 2 microseconds, and bucket i > 0 those from 2^i up to
+	// 2^(i+1) microseconds. The last bucket also counts anything longer, about 40 minutes or more
+	private static final int BUCKETS = 32;
+	
+	private final String name;
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+	
+	// Create an empty histogram with the given name, used when printing it
+	public LatencyHistogram(String name){
+		this.name = name;
+	}
+	
+	/*
+	 * Records a latency given in nanoseconds
+	 */
+	public void record(long nanos){
+		nanos = Math.max(nanos, 0);
+		long micros = nanos / 1000;
+		int bucket = Math.min(63 - Long.numberOfLeadingZeros(Math.max(micros, 1)), BUCKETS-1);
+		
+		counts.incrementAndGet(bucket);
+		count.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+		
+		long max = maxNanos.get();
+		
+		while(nanos > max && !maxNanos.compareAndSet(max, nanos)){
+			max = maxNanos.get();
+		}
+	}
+	
+	/*
+	 * Returns the number of latencies recorded
+	 */
+	public long count(){
+		return count.get();
+	}
+	
+	/*
+	 * Returns the mean latency in microseconds, or 0 if none were recorded
+	 */
+	public double meanMicros(){
+		long n = count.get();
+		return (n == 0) ? 0 : totalNanos.get() / 1000.0 / n;
+	}
+	
+	/*
+	 * Returns the longest latency recorded in microseconds
+	 */
+	public long maxMicros(){
+		return maxNanos.get() / 1000;
+	}
+	
+	/*
+	 * Returns the upper bound in microseconds of the bucket holding the given percentile, from 0
+	 * to 100, of the latencies recorded, or 0 if none were recorded
+	 */
+	public long percentileMicros(double percentile){
+		if(percentile < 0 || percentile > 100)
+			throw new IllegalArgumentException("Percentile must be between 0 and 100");
+		
+		long[] snapshot = new long[BUCKETS];
+		long n = 0;
+		
+		for(int i = 0; i < BUCKETS; i++){
+			snapshot[i] = counts.get(i);
+			n += snapshot[i];
+		}
+		
+		if(n == 0)
+			return 0;
+		
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+		long seen = 0;
+		
+		for(int i = 0; i < BUCKETS; i++){
+			seen += snapshot[i];
+			
+			if(seen >= rank)
+				return 1L << (i + 1);
+		}
+		return 1L << BUCKETS;
+	}
+	
+	/*
+	 * Appends a summary line and one line per non-empty bucket to the given builder
+	 */
+	public void appendTo(StringBuilder out){
+		out.append(String.format("%s: count %d, mean %.1f ms, p50 %s, p90 %s, p99 %s, max %.1f ms%n",
+				name, count(), meanMicros() / 1000, bound(percentileMicros(50)), bound(percentileMicros(90)),
+				bound(percentileMicros(99)), maxMicros() / 1000.0));
+		
+		for(int i = 0; i < BUCKETS; i++){
+			long n = counts.get(i);
+			
+			if(n > 0)
+				out.append(String.format("  < %10s %10d%n", bound(1L << (i + 1)), n));
+		}
+	}
+	
+	@Override
+	public String toString(){
+		StringBuilder out = new StringBuilder();
+		appendTo(out);
+		return out.toString();
+	}
+	
+	/*
+	 * Formats a bucket bound given in microseconds
+	 */
+	private static String bound(long micros){
+		if(micros < 1000)
+			return micros + " us";
+		if(micros < 1000000)
+			return (micros / 1000) + " ms";
+		return (micros / 1000000) + " s";
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ * A cheaper energy for high-volume work: the squared magnitude of the Sobel gradient of the
+ * pixels' luminance. The luminances of each column are calculated once per row, as the 3x3
+ * window slides along the row, instead of once for each of the windows they fall in
+ */
+public class LuminanceSobelEnergy implements EnergyFunction {
+	@Override
+	public int radius(){
+		return 1;
+	}
+	
+	@Override
+	public void energyRow(int[] pixels, int stride, int width, int height, int row, int colFrom, int colTo, int[] dst, int dstOffset){
+		if(colFrom >= colTo)
+			return;
+		
+		int center = row * stride;
+		int top = ((row == 0) ? height-1 : row-1) * stride;
+		int bottom = ((row == height-1) ? 0 : row+1) * stride;
+		
+		// The Sobel kernels are separable: each column of the window contributes its smoothed
+		// luminance (top + 2 * center + bottom) to the x-gradient, and its vertical difference
+		// (bottom - top) to the y-gradient. Both are kept for the left and middle columns
+		int left = (colFrom == 0) ? width-1 : colFrom-1;
+		int leftSmooth = smooth(pixels, top, center, bottom, left);
+		int leftDifference = difference(pixels, top, bottom, left);
+		int middleSmooth = smooth(pixels, top, center, bottom, colFrom);
+		int middleDifference = difference(pixels, top, bottom, colFrom);
+		
+		// The right-most column's right neighbour wraps around to column 0, so it is done
+		// after the loop
+		int last = (colTo == width) ? colTo-1 : colTo;
+		int col = colFrom;
+		
+		for(; col < last; col++){
+			int topLuminance = luminance(pixels[top + col+1]);
+			int bottomLuminance = luminance(pixels[bottom + col+1]);
+			int rightSmooth = topLuminance + 2 * luminance(pixels[center + col+1]) + bottomLuminance;
+			int rightDifference = bottomLuminance - topLuminance;
+			
+			int xGradient = rightSmooth - leftSmooth;
+			int yGradient = leftDifference + 2 * middleDifference + rightDifference;
+			dst[dstOffset + col] = xGradient * xGradient + yGradient * yGradient;
+			
+			leftSmooth = middleSmooth;
+			leftDifference = middleDifference;
+			middleSmooth = rightSmooth;
+			middleDifference = rightDifference;
+		}
+		
+		if(col < colTo){
+			int xGradient = smooth(pixels, top, center, bottom, 0) - leftSmooth;
+			int yGradient = leftDifference + 2 * middleDifference + difference(pixels, top, bottom, 0);
+			dst[dstOffset + col] = xGradient * xGradient + yGradient * yGradient;
+		}
+	}
+	
+	private static int smooth(int[] pixels, int top, int center, int bottom, int col){
+		return luminance(pixels[top + col]) + 2 * luminance(pixels[center + col]) + luminance(pixels[bottom + col]);
+	}
+	
+	private static int difference(int[] pixels, int top, int bottom, int col){
+		return luminance(pixels[bottom + col]) - luminance(pixels[top + col]);
+	}
+	
+	/*
+	 * Returns the luminance of a packed color, from 0 to 255, using integer Rec. 601 weights
+	 */
+	static int luminance(int rgb){
+		return (77 * ((rgb >> 16) & 0xFF) + 150 * ((rgb >> 8) & 0xFF) + 29 * (rgb & 0xFF)) >> 8;
+	}
+}
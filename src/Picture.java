@@ -28,6 +28,7 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
@@ -66,6 +67,7 @@ public final class Picture implements ActionListener {
     private JFrame frame;                      // on-screen view
     private String filename;                   // name of file
     private boolean isOriginUpperLeft = true;  // location of origin
+    private boolean isReadOnly;                // whether changes are refused
     private final int width, height;           // width and height
 
    /**
@@ -99,9 +101,10 @@ public final class Picture implements ActionListener {
         height = picture.height();
         image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
         filename = picture.filename;
-        for (int col = 0; col < width(); col++)
-            for (int row = 0; row < height(); row++)
-                image.setRGB(col, row, picture.get(col, row).getRGB());
+        int[] data = data();
+        int[] source = picture.data();
+        for (int row = 0; row < height; row++)
+            System.arraycopy(source, picture.rasterRow(row) * width, data, row * width, width);
     }
 
    /**
@@ -119,7 +122,7 @@ public final class Picture implements ActionListener {
             // try to read from file in working directory
             File file = new File(filename);
             if (file.isFile()) {
-                image = ImageIO.read(file);
+                image = RasterFile.isRasterFile(file) ? readRaster(file) : ImageIO.read(file);
             }
 
             // now try to read from file in same directory as this .class file
@@ -135,6 +138,7 @@ public final class Picture implements ActionListener {
                 throw new IllegalArgumentException("could not read image file: " + filename);
             }
 
+            image  = toIntRGB(image);
             width  = image.getWidth(null);
             height = image.getHeight(null);
         }
@@ -144,7 +148,7 @@ public final class Picture implements ActionListener {
     }
 
    /**
-     * Initializes a picture by reading in a .png, .gif, or .jpg from a file.
+     * Initializes a picture by reading in a .png, .gif, .jpg, or .raster from a file.
      *
      * @param file the file
      * @throws IllegalArgumentException if cannot read image
@@ -154,7 +158,7 @@ public final class Picture implements ActionListener {
         if (file == null) throw new IllegalArgumentException("constructor argument is null");
 
         try {
-            image = ImageIO.read(file);
+            image = RasterFile.isRasterFile(file) ? readRaster(file) : ImageIO.read(file);
         }
         catch (IOException ioe) {
             throw new IllegalArgumentException("could not open file: " + file, ioe);
@@ -162,11 +166,54 @@ public final class Picture implements ActionListener {
         if (image == null) {
             throw new IllegalArgumentException("could not read file: " + file);
         }
+        image  = toIntRGB(image);
         width  = image.getWidth(null);
         height = image.getHeight(null);
         filename = file.getName();
     }
 
+    // converts a decoded image to TYPE_INT_RGB once, so pixels can be accessed
+    // directly through its DataBufferInt
+    private static BufferedImage toIntRGB(BufferedImage decoded) {
+        if (decoded.getType() == BufferedImage.TYPE_INT_RGB) return decoded;
+        int w = decoded.getWidth();
+        int h = decoded.getHeight();
+        BufferedImage converted = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        int[] data = ((DataBufferInt) converted.getRaster().getDataBuffer()).getData();
+        decoded.getRGB(0, 0, w, h, data, 0, w);
+        clearAlpha(data);
+        return converted;
+    }
+
+    // reads a raster file straight from its mapped pages into the pixels of a new image
+    private static BufferedImage readRaster(File file) throws IOException {
+        try (RasterFile raster = RasterFile.open(file)) {
+            BufferedImage decoded = new BufferedImage(raster.width(), raster.height(), BufferedImage.TYPE_INT_RGB);
+            int[] data = ((DataBufferInt) decoded.getRaster().getDataBuffer()).getData();
+            raster.readRows(0, raster.height(), data, 0);
+            clearAlpha(data);
+            return decoded;
+        }
+    }
+
+    // zeroes the top byte of pixels copied straight into the data buffer, which
+    // TYPE_INT_RGB leaves unused but save() writes out to raster files as it is
+    private static void clearAlpha(int[] data) {
+        for (int i = 0; i < data.length; i++)
+            data[i] &= 0x00FFFFFF;
+    }
+
+    // the pixels of the image, one 0xRRGGBB int per pixel in row-major order
+    private int[] data() {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    // row of the underlying image holding the given row of this picture
+    private int rasterRow(int row) {
+        if (isOriginUpperLeft) return row;
+        else                   return height - row - 1;
+    }
+
    /**
      * Returns a JLabel containing this picture, for embedding in a JPanel,
      * JFrame or other GUI widget.
@@ -181,18 +228,48 @@ public final class Picture implements ActionListener {
 
    /**
      * Sets the origin to be the upper left pixel. This is the default.
+     *
+     * @throws UnsupportedOperationException if this picture is read-only
      */
     public void setOriginUpperLeft() {
+        validateWritable();
         isOriginUpperLeft = true;
     }
 
    /**
      * Sets the origin to be the lower left pixel.
+     *
+     * @throws UnsupportedOperationException if this picture is read-only
      */
     public void setOriginLowerLeft() {
+        validateWritable();
         isOriginUpperLeft = false;
     }
 
+   /**
+     * Makes this picture read-only, so that it can be shared without copying.
+     * Any later attempt to change its pixels or its origin throws an exception.
+     * A read-only picture can still be copied with {@link #Picture(Picture)},
+     * and the copy can be changed.
+     */
+    public void setReadOnly() {
+        isReadOnly = true;
+    }
+
+   /**
+     * Returns true if this picture is read-only.
+     *
+     * @return {@code true} if {@link #setReadOnly()} was called on this picture;
+     *         {@code false} otherwise
+     */
+    public boolean isReadOnly() {
+        return isReadOnly;
+    }
+
+    private void validateWritable() {
+        if (isReadOnly) throw new UnsupportedOperationException("picture is read-only");
+    }
+
    /**
      * Displays the picture in a window on the screen.
      */
@@ -296,6 +373,7 @@ public final class Picture implements ActionListener {
      * @param color the color
      * @throws IllegalArgumentException unless both {@code 0 <= col < width} and {@code 0 <= row < height}
      * @throws IllegalArgumentException if {@code color} is {@code null}
+     * @throws UnsupportedOperationException if this picture is read-only
      */
     public void set(int col, int row, Color color) {
         validateColumnIndex(col);
@@ -312,14 +390,98 @@ public final class Picture implements ActionListener {
      * @param row the row index
      * @param rgb the integer representation of the color
      * @throws IllegalArgumentException unless both {@code 0 <= col < width} and {@code 0 <= row < height}
+     * @throws UnsupportedOperationException if this picture is read-only
      */
     public void setRGB(int col, int row, int rgb) {
+        validateWritable();
         validateColumnIndex(col);
         validateRowIndex(row);
         if (isOriginUpperLeft) image.setRGB(col, row, rgb);
         else                   image.setRGB(col, height - row - 1, rgb);
     }
 
+   /**
+     * Copies the colors of all pixels into the given array in row-major order, so that
+     * pixel ({@code col}, {@code row}) is stored at index {@code row * width + col}.
+     * Each color is in the same integer representation as {@link #getRGB(int, int)}.
+     *
+     * @param dst the array to fill
+     * @throws IllegalArgumentException if {@code dst} is {@code null}
+     * @throws IllegalArgumentException if {@code dst} has fewer than {@code width * height} entries
+     */
+    public void getPixels(int[] dst) {
+        if (dst == null) throw new IllegalArgumentException("argument to getPixels() is null");
+        if (dst.length < width * height) throw new IllegalArgumentException("array is too small for a " + width + "-by-" + height + " picture");
+        for (int row = 0; row < height; row++)
+            getRGB(0, row, width, dst, row * width);
+    }
+
+   /**
+     * Sets the colors of all pixels from the given array in row-major order, so that
+     * pixel ({@code col}, {@code row}) is read from index {@code row * width + col}.
+     *
+     * @param src the integer representations of the colors
+     * @throws IllegalArgumentException if {@code src} is {@code null}
+     * @throws IllegalArgumentException if {@code src} has fewer than {@code width * height} entries
+     * @throws UnsupportedOperationException if this picture is read-only
+     */
+    public void setPixels(int[] src) {
+        if (src == null) throw new IllegalArgumentException("argument to setPixels() is null");
+        if (src.length < width * height) throw new IllegalArgumentException("array is too small for a " + width + "-by-" + height + " picture");
+        for (int row = 0; row < height; row++)
+            setRGB(0, row, width, src, row * width);
+    }
+
+   /**
+     * Copies the colors of {@code length} consecutive pixels of row {@code row}, starting
+     * at column {@code col}, into {@code dst} starting at index {@code offset}.
+     * Each color is in the same integer representation as {@link #getRGB(int, int)}.
+     *
+     * @param col the column index of the first pixel
+     * @param row the row index
+     * @param length the number of pixels to copy
+     * @param dst the array to fill
+     * @param offset the index in {@code dst} of the first pixel
+     * @throws IllegalArgumentException unless the span lies within the picture and within {@code dst}
+     */
+    public void getRGB(int col, int row, int length, int[] dst, int offset) {
+        validateSpan(col, row, length, dst, offset);
+        int[] data = data();
+        int start = rasterRow(row) * width + col;
+        for (int i = 0; i < length; i++)
+            dst[offset + i] = 0xFF000000 | data[start + i];
+    }
+
+   /**
+     * Sets the colors of {@code length} consecutive pixels of row {@code row}, starting
+     * at column {@code col}, from {@code src} starting at index {@code offset}.
+     *
+     * @param col the column index of the first pixel
+     * @param row the row index
+     * @param length the number of pixels to set
+     * @param src the integer representations of the colors
+     * @param offset the index in {@code src} of the first pixel
+     * @throws IllegalArgumentException unless the span lies within the picture and within {@code src}
+     * @throws UnsupportedOperationException if this picture is read-only
+     */
+    public void setRGB(int col, int row, int length, int[] src, int offset) {
+        validateWritable();
+        validateSpan(col, row, length, src, offset);
+        int[] data = data();
+        int start = rasterRow(row) * width + col;
+        for (int i = 0; i < length; i++)
+            data[start + i] = 0x00FFFFFF & src[offset + i];
+    }
+
+    private void validateSpan(int col, int row, int length, int[] array, int offset) {
+        validateRowIndex(row);
+        if (array == null) throw new IllegalArgumentException("array argument is null");
+        if (length < 0 || col < 0 || col + length > width())
+            throw new IllegalArgumentException("span of " + length + " pixels from column " + col + " exceeds the width " + width());
+        if (offset < 0 || offset + length > array.length)
+            throw new IllegalArgumentException("span of " + length + " pixels from index " + offset + " exceeds the array length " + array.length);
+    }
+
    /**
      * Returns true if this picture is equal to the argument picture.
      *
@@ -334,9 +496,14 @@ public final class Picture implements ActionListener {
         Picture that = (Picture) other;
         if (this.width()  != that.width())  return false;
         if (this.height() != that.height()) return false;
-        for (int col = 0; col < width(); col++)
-            for (int row = 0; row < height(); row++)
-                if (!this.get(col, row).equals(that.get(col, row))) return false;
+        int[] thisData = this.data();
+        int[] thatData = that.data();
+        for (int row = 0; row < height(); row++) {
+            int thisStart = this.rasterRow(row) * width;
+            int thatStart = that.rasterRow(row) * width;
+            for (int col = 0; col < width(); col++)
+                if (((thisData[thisStart + col] ^ thatData[thatStart + col]) & 0x00FFFFFF) != 0) return false;
+        }
         return true;
     }
 
@@ -352,7 +519,7 @@ public final class Picture implements ActionListener {
 
    /**
      * Saves the picture to a file in a standard image format.
-     * The filetype must be .png or .jpg.
+     * The filetype must be .png, .jpg or .raster.
      *
      * @param filename the name of the file
      * @throws IllegalArgumentException if {@code name} is {@code null}
@@ -363,7 +530,8 @@ public final class Picture implements ActionListener {
     }
 
    /**
-     * Saves the picture to a file in a PNG or JPEG image format.
+     * Saves the picture to a file in a PNG or JPEG image format, or as an
+     * uncompressed {@link RasterFile} if the file ends in .raster.
      *
      * @param  file the file
      * @throws IllegalArgumentException if {@code file} is {@code null}
@@ -373,7 +541,15 @@ public final class Picture implements ActionListener {
         filename = file.getName();
         if (frame != null) frame.setTitle(filename);
         String suffix = filename.substring(filename.lastIndexOf('.') + 1);
-        if ("jpg".equalsIgnoreCase(suffix) || "png".equalsIgnoreCase(suffix)) {
+        if (RasterFile.EXTENSION.equalsIgnoreCase(suffix)) {
+            try (RasterFile raster = RasterFile.create(file, width, height)) {
+                raster.writeRows(0, height, data(), 0);
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        else if ("jpg".equalsIgnoreCase(suffix) || "png".equalsIgnoreCase(suffix)) {
             try {
                 ImageIO.write(image, suffix, file);
             }
@@ -382,7 +558,7 @@ public final class Picture implements ActionListener {
             }
         }
         else {
-            System.out.println("Error: filename must end in .jpg or .png");
+            System.out.println("Error: filename must end in .jpg, .png or .raster");
         }
     }
 
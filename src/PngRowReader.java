@@ -0,0 +1,438 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+/*
+ * Reads the rows of a PNG file one after the other, top to bottom, holding only two rows of the
+ * image in memory, so that PNG images larger than the heap can be carved by StreamingSeamCarver
+ * or turned into raster files. ImageIO's PNG reader always decodes into an image as large as the
+ * region read, and starts again from the top of the image for every region.
+ *
+ * All bit depths and color types are read, and colors are returned as 0xFFRRGGBB ints, the same
+ * values Picture reads from the file: gray and 16-bit samples are converted through the color
+ * model ImageIO reads the file with, since it treats gray as linear and rounds 16-bit samples.
+ * Alpha channels and transparent colors are ignored, since pictures have no transparency.
+ * Interlaced images cannot be read a row at a time, so they are refused
+ */
+public class PngRowReader implements Closeable {
+	private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+	
+	private static final int IHDR = 0x49484452;
+	private static final int PLTE = 0x504C5445;
+	private static final int IDAT = 0x49444154;
+	
+	private static final int GRAY = 0;
+	private static final int RGB = 2;
+	private static final int PALETTE = 3;
+	private static final int GRAY_ALPHA = 4;
+	private static final int RGB_ALPHA = 6;
+	
+	private final DataInputStream file;
+	private final Inflater inflater = new Inflater();
+	private final DataInputStream data;
+	
+	private final int width;
+	private final int height;
+	private final int bitDepth;
+	private final int colorType;
+	
+	// Colors of a palette image, black past the end of the file's palette
+	private final int[] palette = new int[256];
+	
+	// Eight-bit level of every sample value, for gray and 16-bit images, or null when 8-bit
+	// samples are used as they are
+	private final int[] levels;
+	
+	// Filtered bytes of the row being read and the row above it, and the number of bytes
+	// per pixel the filters look back, at least 1
+	private byte[] current;
+	private byte[] previous;
+	private final int filterOffset;
+	
+	// Next row to read, and the bytes left in the image data chunk being read
+	private int nextRow;
+	private int chunkRemaining;
+	private boolean dataEnded;
+	
+	// Open the given PNG file and read its header, up to the start of the image data
+	public PngRowReader(File png) throws IOException{
+		this.file = new DataInputStream(new BufferedInputStream(new FileInputStream(png), 64 << 10));
+		
+		try{
+			byte[] signature = new byte[SIGNATURE.length];
+			file.readFully(signature);
+			
+			if(!Arrays.equals(signature, SIGNATURE))
+				throw new IOException("Not a PNG file: " + png);
+			
+			int[] header = null;
+			
+			while(true){
+				int length = file.readInt();
+				int type = file.readInt();
+				
+				if(length < 0)
+					throw new IOException("Corrupt PNG chunk length in " + png);
+				
+				if(type == IDAT){
+					chunkRemaining = length;
+					break;
+				}
+				
+				if(type == IHDR){
+					header = new int[] {file.readInt(), file.readInt(), file.readUnsignedByte(), file.readUnsignedByte(),
+							file.readUnsignedByte(), file.readUnsignedByte(), file.readUnsignedByte()};
+					skipFully(length - 13);
+				} else if(type == PLTE){
+					for(int i = 0; i < length / 3; i++){
+						int color = (file.readUnsignedByte() << 16) | (file.readUnsignedByte() << 8) | file.readUnsignedByte();
+						
+						if(i < palette.length)
+							palette[i] = color;
+					}
+					skipFully(length % 3);
+				} else {
+					skipFully(length);
+				}
+				
+				// Chunk CRC, not checked
+				skipFully(4);
+			}
+			
+			if(header == null)
+				throw new IOException("PNG file has no header: " + png);
+			
+			this.width = header[0];
+			this.height = header[1];
+			this.bitDepth = header[2];
+			this.colorType = header[3];
+			
+			if(width < 1 || height < 1)
+				throw new IOException("PNG file has no pixels: " + png);
+			
+			if(header[4] != 0 || header[5] != 0)
+				throw new IOException("Unknown PNG compression or filter method in " + png);
+			
+			if(header[6] != 0)
+				throw new IOException("Interlaced PNG images cannot be read a row at a time: " + png);
+			
+			if(!validDepth(colorType, bitDepth))
+				throw new IOException("Unknown PNG color type " + colorType + " with bit depth " + bitDepth + " in " + png);
+			
+			int bitsPerPixel = channels(colorType) * bitDepth;
+			long rowBytes = ((long) width * bitsPerPixel + 7) / 8;
+			
+			if(rowBytes > Integer.MAX_VALUE - 8)
+				throw new IOException("PNG rows are too long to read: " + png);
+			
+			this.current = new byte[(int) rowBytes];
+			this.previous = new byte[(int) rowBytes];
+			this.filterOffset = Math.max(1, bitsPerPixel / 8);
+			this.levels = (colorType == PALETTE || (bitDepth == 8 && (colorType == RGB || colorType == RGB_ALPHA))) ? null : levels(png);
+			this.data = new DataInputStream(new InflaterInputStream(new ImageData(), inflater, 64 << 10));
+		} catch(IOException | RuntimeException e){
+			file.close();
+			inflater.end();
+			throw e;
+		}
+	}
+	
+	/*
+	 * Returns whether the given file is a PNG file that can be read a row at a time, which is
+	 * any PNG file that is not interlaced, judging by its header alone
+	 */
+	public static boolean isStreamable(File file) throws IOException{
+		byte[] signature = new byte[SIGNATURE.length];
+		
+		try(DataInputStream in = new DataInputStream(new FileInputStream(file))){
+			in.readFully(signature);
+			
+			if(!Arrays.equals(signature, SIGNATURE))
+				return false;
+			
+			// The header chunk comes first, with the interlace method as its last byte
+			in.readInt();
+			
+			if(in.readInt() != IHDR)
+				return false;
+			
+			in.skipBytes(12);
+			return in.readUnsignedByte() == 0;
+		} catch(EOFException e){
+			return false;
+		}
+	}
+	
+	public int width(){
+		return width;
+	}
+	
+	public int height(){
+		return height;
+	}
+	
+	/*
+	 * Reads the next count rows into dst, the first pixel of each row stride ints after the one
+	 * of the row before, starting at offset
+	 */
+	public void readRows(int count, int[] dst, int offset, int stride) throws IOException{
+		if(count < 0 || nextRow + count > height)
+			throw new IllegalArgumentException("Only " + (height - nextRow) + " rows are left to read");
+		
+		if(offset < 0 || (count > 0 && offset + (long) (count - 1) * stride + width > dst.length))
+			throw new IndexOutOfBoundsException("Rows do not fit in the destination array");
+		
+		for(int r = 0; r < count; r++){
+			readRow();
+			convertRow(dst, offset + r * stride);
+			nextRow++;
+		}
+	}
+	
+	@Override
+	public void close() throws IOException{
+		inflater.end();
+		file.close();
+	}
+	
+	/*
+	 * Reads and unfilters the next row into current, keeping the row above in previous
+	 */
+	private void readRow() throws IOException{
+		byte[] swap = previous;
+		previous = current;
+		current = swap;
+		
+		int filter = data.read();
+		
+		if(filter < 0)
+			throw new EOFException("PNG image data ends before row " + nextRow);
+		
+		data.readFully(current);
+		
+		byte[] row = current;
+		byte[] above = previous;
+		int n = row.length;
+		int left = filterOffset;
+		
+		switch(filter){
+			case 0:
+				break;
+			case 1:
+				for(int i = left; i < n; i++){
+					row[i] += row[i - left];
+				}
+				break;
+			case 2:
+				for(int i = 0; i < n; i++){
+					row[i] += above[i];
+				}
+				break;
+			case 3:
+				for(int i = 0; i < n; i++){
+					int a = (i >= left) ? row[i - left] & 0xFF : 0;
+					row[i] += (a + (above[i] & 0xFF)) >> 1;
+				}
+				break;
+			case 4:
+				for(int i = 0; i < n; i++){
+					int a = (i >= left) ? row[i - left] & 0xFF : 0;
+					int b = above[i] & 0xFF;
+					int c = (i >= left) ? above[i - left] & 0xFF : 0;
+					row[i] += paeth(a, b, c);
+				}
+				break;
+			default:
+				throw new IOException("Unknown PNG filter type " + filter + " in row " + nextRow);
+		}
+	}
+	
+	/*
+	 * Converts the unfiltered row to colors
+	 */
+	private void convertRow(int[] dst, int offset){
+		byte[] row = current;
+		
+		if(bitDepth < 8){
+			int mask = (1 << bitDepth) - 1;
+			
+			for(int c = 0; c < width; c++){
+				int bit = c * bitDepth;
+				int sample = (row[bit >> 3] >> (8 - bitDepth - (bit & 7))) & mask;
+				
+				if(colorType == PALETTE){
+					dst[offset + c] = 0xFF000000 | palette[sample];
+				} else {
+					int gray = levels[sample];
+					dst[offset + c] = 0xFF000000 | (gray << 16) | (gray << 8) | gray;
+				}
+			}
+			return;
+		}
+		
+		int bytes = bitDepth / 8;
+		int pixelBytes = channels(colorType) * bytes;
+		
+		for(int c = 0, i = 0; c < width; c++, i += pixelBytes){
+			int color;
+			
+			if(colorType == PALETTE){
+				color = palette[row[i] & 0xFF];
+			} else if(colorType == GRAY || colorType == GRAY_ALPHA){
+				int gray = levels[sample(row, i)];
+				color = (gray << 16) | (gray << 8) | gray;
+			} else if(levels == null){
+				color = ((row[i] & 0xFF) << 16) | ((row[i + 1] & 0xFF) << 8) | (row[i + 2] & 0xFF);
+			} else {
+				color = (levels[sample(row, i)] << 16) | (levels[sample(row, i + bytes)] << 8) | levels[sample(row, i + 2*bytes)];
+			}
+			dst[offset + c] = 0xFF000000 | color;
+		}
+	}
+	
+	/*
+	 * Returns the 8 or 16-bit sample starting at the given byte of the row
+	 */
+	private int sample(byte[] row, int i){
+		return (bitDepth == 8) ? row[i] & 0xFF : ((row[i] & 0xFF) << 8) | (row[i + 1] & 0xFF);
+	}
+	
+	/*
+	 * Returns the 8-bit level ImageIO gives every sample value of the given file's color channels,
+	 * found by converting one pixel per value with the image type ImageIO reads the file as
+	 */
+	private int[] levels(File png) throws IOException{
+		try(ImageInputStream input = ImageIO.createImageInputStream(png)){
+			ImageReader reader = ImageIO.getImageReadersByFormatName("png").next();
+			
+			try{
+				reader.setInput(input, true, true);
+				ImageTypeSpecifier type = reader.getImageTypes(0).next();
+				int samples = 1 << bitDepth;
+				
+				BufferedImage image = type.createBufferedImage(samples, 1);
+				WritableRaster raster = image.getRaster();
+				int colors = image.getColorModel().getNumColorComponents();
+				
+				for(int v = 0; v < samples; v++){
+					for(int band = 0; band < raster.getNumBands(); band++){
+						raster.setSample(v, 0, band, (band < colors) ? v : samples - 1);
+					}
+				}
+				
+				int[] levels = new int[samples];
+				
+				for(int v = 0; v < samples; v++){
+					levels[v] = image.getRGB(v, 0) & 0xFF;
+				}
+				return levels;
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+	
+	private static int paeth(int a, int b, int c){
+		int p = a + b - c;
+		int pa = Math.abs(p - a);
+		int pb = Math.abs(p - b);
+		int pc = Math.abs(p - c);
+		
+		if(pa <= pb && pa <= pc)
+			return a;
+		
+		return (pb <= pc) ? b : c;
+	}
+	
+	private static int channels(int colorType){
+		switch(colorType){
+			case RGB:
+				return 3;
+			case GRAY_ALPHA:
+				return 2;
+			case RGB_ALPHA:
+				return 4;
+			default:
+				return 1;
+		}
+	}
+	
+	private static boolean validDepth(int colorType, int bitDepth){
+		switch(colorType){
+			case GRAY:
+				return bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8 || bitDepth == 16;
+			case PALETTE:
+				return bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8;
+			case RGB:
+			case GRAY_ALPHA:
+			case RGB_ALPHA:
+				return bitDepth == 8 || bitDepth == 16;
+			default:
+				return false;
+		}
+	}
+	
+	private void skipFully(int n) throws IOException{
+		while(n > 0){
+			int skipped = file.skipBytes(n);
+			
+			if(skipped <= 0){
+				file.readByte();
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+	
+	/*
+	 * The compressed image data, read across consecutive IDAT chunks
+	 */
+	private final class ImageData extends InputStream {
+		@Override
+		public int read() throws IOException{
+			byte[] one = new byte[1];
+			return (read(one, 0, 1) < 0) ? -1 : one[0] & 0xFF;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException{
+			while(chunkRemaining == 0){
+				if(dataEnded)
+					return -1;
+				
+				// CRC of the chunk just read, then the next chunk's header
+				skipFully(4);
+				int length = file.readInt();
+				
+				if(file.readInt() != IDAT || length < 0){
+					dataEnded = true;
+					return -1;
+				}
+				chunkRemaining = length;
+			}
+			
+			int n = file.read(b, off, Math.min(len, chunkRemaining));
+			
+			if(n < 0)
+				throw new EOFException("PNG file ends inside its image data");
+			
+			chunkRemaining -= n;
+			return n;
+		}
+	}
+}
@@ -0,0 +1,225 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * An uncompressed image file, used for intermediate images between carving stages where PNG and
+ * JPEG encoding would dominate the run time. The file is a 16 byte header followed by the pixels
+ * as row-major 0xAARRGGBB ints, top row first:
+ *
+ *   bytes 0-3    the magic number "RAST"
+ *   byte  4      the byte order of the rest of the file, 0 for big-endian and 1 for little-endian
+ *   bytes 5-7    reserved, zero
+ *   bytes 8-11   the width
+ *   bytes 12-15  the height
+ *
+ * Picture has no transparency, so it writes the alpha byte as zero and ignores it when reading.
+ * Files are written in the platform's byte order, so that reading and writing them is a plain
+ * copy between memory-mapped pages and int arrays. Files written in the other byte order can
+ * still be read. The file is mapped in segments of whole rows, so images of more than 2 GB can
+ * be read and written a few rows at a time
+ */
+public class RasterFile implements Closeable {
+	// Extension of raster files, used by Picture to tell them apart from PNG and JPEG files
+	public static final String EXTENSION = "raster";
+	
+	private static final byte[] MAGIC = {'R', 'A', 'S', 'T'};
+	private static final int HEADER_BYTES = 16;
+	
+	// Largest number of bytes mapped at once
+	private static final int SEGMENT_BYTES = 1 << 30;
+	
+	private final FileChannel channel;
+	private final FileChannel.MapMode mode;
+	private final ByteOrder order;
+	private final int width;
+	private final int height;
+	
+	// Pixels of each segment of rowsPerSegment rows, mapped on first use
+	private final int rowsPerSegment;
+	private final IntBuffer[] segments;
+	
+	private RasterFile(FileChannel channel, FileChannel.MapMode mode, ByteOrder order, int width, int height){
+		this.channel = channel;
+		this.mode = mode;
+		this.order = order;
+		this.width = width;
+		this.height = height;
+		this.rowsPerSegment = Math.max(1, SEGMENT_BYTES / Math.max(4 * width, 1));
+		this.segments = new IntBuffer[(height + rowsPerSegment - 1) / rowsPerSegment];
+	}
+	
+	/*
+	 * Returns whether the given file has the raster file extension
+	 */
+	public static boolean isRasterFile(File file){
+		String name = file.getName();
+		return name.substring(name.lastIndexOf('.') + 1).equalsIgnoreCase(EXTENSION);
+	}
+	
+	/*
+	 * Opens an existing raster file for reading
+	 */
+	public static RasterFile open(File file) throws IOException{
+		FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+		
+		try{
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			
+			while(header.hasRemaining()){
+				if(channel.read(header, header.position()) < 0)
+					throw new IOException("Truncated raster file header: " + file);
+			}
+			
+			for(int i = 0; i < MAGIC.length; i++){
+				if(header.get(i) != MAGIC[i])
+					throw new IOException("Not a raster file: " + file);
+			}
+			
+			ByteOrder order = (header.get(4) == 0) ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+			header.order(order);
+			int width = header.getInt(8);
+			int height = header.getInt(12);
+			
+			if(width < 0 || height < 0)
+				throw new IOException("Invalid raster file dimensions: " + file);
+			
+			if(channel.size() < HEADER_BYTES + 4L * width * height)
+				throw new IOException("Truncated raster file: " + file);
+			
+			return new RasterFile(channel, FileChannel.MapMode.READ_ONLY, order, width, height);
+		} catch(IOException | RuntimeException e){
+			channel.close();
+			throw e;
+		}
+	}
+	
+	/*
+	 * Creates a raster file of the given dimensions for writing, replacing any existing file
+	 */
+	public static RasterFile create(File file, int width, int height) throws IOException{
+		if(width < 0 || height < 0)
+			throw new IllegalArgumentException("Raster dimensions must be nonnegative");
+		
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		FileChannel channel = raf.getChannel();
+		
+		try{
+			ByteOrder order = ByteOrder.nativeOrder();
+			raf.setLength(HEADER_BYTES + 4L * width * height);
+			
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(order);
+			header.put(MAGIC);
+			header.put((byte) ((order == ByteOrder.BIG_ENDIAN) ? 0 : 1));
+			header.putInt(8, width);
+			header.putInt(12, height);
+			header.clear();
+			
+			while(header.hasRemaining()){
+				channel.write(header, header.position());
+			}
+			return new RasterFile(channel, FileChannel.MapMode.READ_WRITE, order, width, height);
+		} catch(IOException | RuntimeException e){
+			channel.close();
+			throw e;
+		}
+	}
+	
+	/*
+	 * Returns the width of the image
+	 */
+	public int width(){
+		return width;
+	}
+	
+	/*
+	 * Returns the height of the image
+	 */
+	public int height(){
+		return height;
+	}
+	
+	/*
+	 * Copies count rows, starting at the given row, into dst starting at offset. Rows are
+	 * stored width ints apart in dst
+	 */
+	public void readRows(int row, int count, int[] dst, int offset) throws IOException{
+		validateRows(row, count, dst, offset);
+		
+		while(count > 0){
+			IntBuffer segment = segment(row / rowsPerSegment);
+			int segmentRow = row % rowsPerSegment;
+			int n = Math.min(count, rowsPerSegment - segmentRow);
+			
+			segment.position(segmentRow * width);
+			segment.get(dst, offset, n * width);
+			
+			row += n;
+			count -= n;
+			offset += n * width;
+		}
+	}
+	
+	/*
+	 * Copies count rows from src, starting at offset, into the file starting at the given row.
+	 * Rows are stored width ints apart in src
+	 */
+	public void writeRows(int row, int count, int[] src, int offset) throws IOException{
+		if(mode != FileChannel.MapMode.READ_WRITE)
+			throw new IllegalStateException("Raster file was opened for reading");
+		
+		validateRows(row, count, src, offset);
+		
+		while(count > 0){
+			IntBuffer segment = segment(row / rowsPerSegment);
+			int segmentRow = row % rowsPerSegment;
+			int n = Math.min(count, rowsPerSegment - segmentRow);
+			
+			segment.position(segmentRow * width);
+			segment.put(src, offset, n * width);
+			
+			row += n;
+			count -= n;
+			offset += n * width;
+		}
+	}
+	
+	private void validateRows(int row, int count, int[] array, int offset){
+		if(array == null)
+			throw new NullPointerException("Null array given");
+		
+		if(row < 0 || count < 0 || row + count > height)
+			throw new IndexOutOfBoundsException("Rows " + row + " to " + (row + count) + " exceed the height " + height);
+		
+		if(offset < 0 || offset + (long) count * width > array.length)
+			throw new IndexOutOfBoundsException("Rows do not fit in the array");
+	}
+	
+	/*
+	 * Returns the pixels of the given segment, mapping it on first use
+	 */
+	private IntBuffer segment(int s) throws IOException{
+		if(segments[s] == null){
+			int from = s * rowsPerSegment;
+			int count = Math.min(rowsPerSegment, height - from);
+			long position = HEADER_BYTES + 4L * from * width;
+			
+			segments[s] = channel.map(mode, position, 4L * count * width).order(order).asIntBuffer();
+		}
+		return segments[s];
+	}
+	
+	/*
+	 * Closes the file. Mapped segments stay valid until they are garbage collected, and
+	 * anything written to them reaches the file
+	 */
+	@Override
+	public void close() throws IOException{
+		channel.close();
+	}
+}
@@ -0,0 +1,27 @@
+/*
+ * The loops over the columns of a row that dominate seam carving: calculating the energies of a
+ * row, and relaxing a row's distances from the row above. Both are data-parallel over columns,
+ * so they can be vectorized where the JDK supports it.
+ *
+ * SeamCarver uses the vectorized kernels in VectorRowKernels when that class was compiled (from
+ * src-vector) and the jdk.incubator.vector module is available, and ScalarRowKernels otherwise.
+ * Both give identical results
+ */
+interface RowKernels {
+	/*
+	 * Calculates the energies of columns colFrom (inclusive) to colTo (exclusive) of an image row,
+	 * none of which may be a border column. center, top and bottom are the indexes in pixels of
+	 * the start of the row and of the rows above and below it. The energy of column c is written
+	 * to dst[dstOffset + c]
+	 */
+	void energyInterior(int[] pixels, int center, int top, int bottom, int colFrom, int colTo, int[] dst, int dstOffset);
+	
+	/*
+	 * Sets the distance of each column c from colFrom (inclusive) to colTo (exclusive) of a row
+	 * to the smallest previous row distance of columns c-1, c and c+1, plus the energy at
+	 * energies[rowStart + c]. The offset of that predecessor is written to parents[rowStart + c],
+	 * ties going to the left-most. The distance of column c is stored at index c+1 of previous
+	 * and current, between sentinels
+	 */
+	void relax(long[] previous, long[] current, int[] energies, byte[] parents, int rowStart, int colFrom, int colTo);
+}
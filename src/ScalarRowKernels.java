@@ -0,0 +1,34 @@
+/*
+ * Row kernels that work one column at a time, used where the Vector API is not available
+ */
+class ScalarRowKernels implements RowKernels {
+	@Override
+	public void energyInterior(int[] pixels, int center, int top, int bottom, int colFrom, int colTo, int[] dst, int dstOffset){
+		for(int col = colFrom; col < colTo; col++){
+			dst[dstOffset + col] = SeamCarver.calculateGradient(pixels[center + col+1], pixels[center + col-1])
+					+ SeamCarver.calculateGradient(pixels[top + col], pixels[bottom + col]);
+		}
+	}
+	
+	@Override
+	public void relax(long[] previous, long[] current, int[] energies, byte[] parents, int rowStart, int colFrom, int colTo){
+		for(int c = colFrom; c < colTo; c++){
+			// Pick the cheapest of the 3 pixels positioned immediately above it (the sentinels
+			// stand in for columns outside the image). Ties go to the left-most pixel
+			long minDist = previous[c+1];
+			byte parent = 0;
+			
+			if(previous[c] <= minDist){
+				minDist = previous[c];
+				parent = -1;
+			}
+			if(previous[c+2] < minDist){
+				minDist = previous[c+2];
+				parent = 1;
+			}
+			
+			current[c+1] = minDist + energies[rowStart + c];
+			parents[rowStart + c] = parent;
+		}
+	}
+}
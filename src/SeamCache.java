@@ -0,0 +1,370 @@
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/*
+ * A cache of energy graphs and seam maps on disk, for jobs that carve the same pictures again
+ * and again. Entries are keyed by a digest of the picture's dimensions and pixels, since pictures
+ * are mutable and have no hash code, together with the energy function, identified by its class
+ * name and radius, and for seam maps the cost mode. A carver built from a cached energy graph
+ * skips the energy computation, and a cached seam map skips all energy and distance work.
+ *
+ * Energy graphs are stored as raster files holding the energies in place of colors, and seam maps
+ * in their own format. Each entry is written to a temporary file in the cache directory and then
+ * moved into place, so other jobs sharing the directory never see a partial entry. When the
+ * entries grow past the size limit the least recently used are deleted, recency being the
+ * files' modification times, which hits refresh. Temporary files count toward the limit too, and
+ * those left behind by a job that crashed are deleted once they are STALE_TEMP_MILLIS old, when
+ * the cache is opened and whenever it evicts. Entries that cannot be read, because another job
+ * deleted or is replacing them or they are corrupt, are treated as misses
+ */
+public class SeamCache {
+	private static final String ENERGY_EXTENSION = ".energy";
+	private static final String SEAM_MAP_EXTENSION = "." + SeamMap.EXTENSION;
+	private static final String TEMP_EXTENSION = ".part";
+	
+	// Age after which a temporary file is taken to be left behind by a job that crashed, long
+	// past the time any job takes to write an entry
+	static final long STALE_TEMP_MILLIS = 60 * 60 * 1000;
+	
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	
+	private final File directory;
+	private final long maxBytes;
+	
+	private long hits;
+	private long misses;
+	
+	// Create a cache keeping up to maxBytes of entries in the given directory, creating it if needed
+	public SeamCache(File directory, long maxBytes) throws IOException{
+		if(directory == null)
+			throw new NullPointerException("Null directory given");
+		
+		if(maxBytes < 0)
+			throw new IllegalArgumentException("Cache size must not be negative");
+		
+		Files.createDirectories(directory.toPath());
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		
+		sweepTempFiles();
+	}
+	
+	/*
+	 * Returns the digest pictures are cached under, a SHA-256 hash of the picture's width, height
+	 * and pixels in hexadecimal
+	 */
+	public static String key(Picture picture){
+		MessageDigest digest;
+		
+		try{
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch(NoSuchAlgorithmException e){
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+		
+		int width = picture.width();
+		int height = picture.height();
+		int[] row = new int[width];
+		ByteBuffer bytes = ByteBuffer.allocate(4 * Math.max(width, 2));
+		
+		bytes.putInt(width).putInt(height);
+		digest.update(bytes.array(), 0, 8);
+		
+		for(int r = 0; r < height; r++){
+			picture.getRGB(0, r, width, row, 0);
+			bytes.clear();
+			bytes.asIntBuffer().put(row);
+			digest.update(bytes.array(), 0, 4 * width);
+		}
+		
+		byte[] hash = digest.digest();
+		char[] hex = new char[2 * hash.length];
+		
+		for(int i = 0; i < hash.length; i++){
+			hex[2*i] = HEX[(hash[i] >> 4) & 0xF];
+			hex[2*i + 1] = HEX[hash[i] & 0xF];
+		}
+		return new String(hex);
+	}
+	
+	/*
+	 * Returns a carver for the given picture with the default energy function, computing its
+	 * energy graph on the calling thread only if it is not cached
+	 */
+	public SeamCarver carver(Picture picture) throws IOException{
+		return carver(picture, new DualGradientEnergy(), 1);
+	}
+	
+	/*
+	 * Returns a carver for the given picture with the given energy function, computing its energy
+	 * graph with the given number of threads only if it is not cached
+	 */
+	public SeamCarver carver(Picture picture, EnergyFunction energyFunction, int parallelism) throws IOException{
+		return carver(picture, key(picture), energyFunction, parallelism);
+	}
+	
+	/*
+	 * Returns the seam map of the given picture with the default energy function and costs,
+	 * computing it only if it is not cached
+	 */
+	public SeamMap seamMap(Picture picture) throws IOException{
+		return seamMap(picture, new DualGradientEnergy(), SeamCarver.CostMode.BACKWARD);
+	}
+	
+	/*
+	 * Returns the seam map of the given picture with the given energy function and cost mode,
+	 * computing it, from a cached energy graph if there is one, only if it is not cached
+	 */
+	public SeamMap seamMap(Picture picture, EnergyFunction energyFunction, SeamCarver.CostMode costMode) throws IOException{
+		if(energyFunction == null)
+			throw new NullPointerException("Null energy function given");
+		
+		if(costMode == null)
+			throw new NullPointerException("Null cost mode given");
+		
+		String key = key(picture);
+		File file = entry(key, energyFunction, "." + costMode.name().toLowerCase() + SEAM_MAP_EXTENSION);
+		
+		try{
+			SeamMap map = SeamMap.load(file);
+			
+			if(map.width() == picture.width() && map.height() == picture.height()){
+				hit(file);
+				return map;
+			}
+		} catch(IOException e){
+			// Not cached, being replaced or evicted by another job, or corrupt
+		}
+		
+		miss();
+		
+		// The energy graph lookup is part of this miss, so it is not counted on its own
+		SeamCarver carver = cachedCarver(picture, key, energyFunction, 1);
+		
+		if(carver == null)
+			carver = computeCarver(picture, key, energyFunction, 1);
+		
+		carver.setCostMode(costMode);
+		
+		SeamMap map = SeamMap.compute(carver);
+		File temp = tempFile();
+		
+		try{
+			map.save(temp);
+			store(temp, file);
+		} finally{
+			temp.delete();
+		}
+		return map;
+	}
+	
+	/*
+	 * Returns the number of lookups that found their entry in the cache
+	 */
+	public synchronized long hits(){
+		return hits;
+	}
+	
+	/*
+	 * Returns the number of lookups that had to compute their entry
+	 */
+	public synchronized long misses(){
+		return misses;
+	}
+	
+	/*
+	 * Returns the total size in bytes of the entries and temporary files in the cache directory
+	 */
+	public long size(){
+		long size = 0;
+		
+		for(File file : entries()){
+			size += file.length();
+		}
+		for(File file : tempFiles()){
+			size += file.length();
+		}
+		return size;
+	}
+	
+	private SeamCarver carver(Picture picture, String key, EnergyFunction energyFunction, int parallelism) throws IOException{
+		if(energyFunction == null)
+			throw new NullPointerException("Null energy function given");
+		
+		SeamCarver carver = cachedCarver(picture, key, energyFunction, parallelism);
+		
+		if(carver != null){
+			hit();
+			return carver;
+		}
+		
+		miss();
+		return computeCarver(picture, key, energyFunction, parallelism);
+	}
+	
+	/*
+	 * Returns a carver built from the cached energy graph of the given picture, refreshing the
+	 * entry's recency, or null if it is not cached. Neither counts as a hit or a miss
+	 */
+	private SeamCarver cachedCarver(Picture picture, String key, EnergyFunction energyFunction, int parallelism){
+		File file = entry(key, energyFunction, ENERGY_EXTENSION);
+		int width = picture.width();
+		int height = picture.height();
+		
+		try(RasterFile raster = RasterFile.open(file)){
+			if(raster.width() == width && raster.height() == height){
+				int[] energies = new int[width * height];
+				raster.readRows(0, height, energies, 0);
+				file.setLastModified(System.currentTimeMillis());
+				return new SeamCarver(picture, energyFunction, energies, parallelism);
+			}
+		} catch(IOException e){
+			// Not cached, or being replaced or evicted by another job
+		}
+		return null;
+	}
+	
+	/*
+	 * Returns a carver for the given picture, computing its energy graph and storing it in the
+	 * cache
+	 */
+	private SeamCarver computeCarver(Picture picture, String key, EnergyFunction energyFunction, int parallelism) throws IOException{
+		File file = entry(key, energyFunction, ENERGY_EXTENSION);
+		int width = picture.width();
+		int height = picture.height();
+		SeamCarver carver = new SeamCarver(picture, energyFunction, parallelism);
+		
+		int[] energies = new int[width * height];
+		carver.getEnergies(energies);
+		File temp = tempFile();
+		
+		try{
+			try(RasterFile raster = RasterFile.create(temp, width, height)){
+				raster.writeRows(0, height, energies, 0);
+			}
+			store(temp, file);
+		} finally{
+			temp.delete();
+		}
+		return carver;
+	}
+	
+	/*
+	 * Returns the file of the entry with the given key, energy function and extension
+	 */
+	private File entry(String key, EnergyFunction energyFunction, String extension){
+		String function = energyFunction.getClass().getName() + "-" + energyFunction.radius();
+		return new File(directory, key + "-" + function + extension);
+	}
+	
+	private File tempFile() throws IOException{
+		return File.createTempFile("entry", TEMP_EXTENSION, directory);
+	}
+	
+	/*
+	 * Moves a fully written temporary file into place as the given entry, then evicts the least
+	 * recently used entries until the cache fits its size limit again
+	 */
+	private void store(File temp, File entry) throws IOException{
+		try{
+			Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch(AtomicMoveNotSupportedException e){
+			Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		evict();
+	}
+	
+	private synchronized void evict(){
+		sweepTempFiles();
+		
+		File[] entries = entries();
+		long size = 0;
+		
+		for(File file : entries){
+			size += file.length();
+		}
+		
+		// Temporary files take space too, though only entries can be evicted to make room
+		for(File file : tempFiles()){
+			size += file.length();
+		}
+		
+		if(size <= maxBytes)
+			return;
+		
+		Arrays.sort(entries, new Comparator<File>(){
+			@Override
+			public int compare(File a, File b){
+				return Long.compare(a.lastModified(), b.lastModified());
+			}
+		});
+		
+		for(int i = 0; i < entries.length && size > maxBytes; i++){
+			long length = entries[i].length();
+			
+			if(entries[i].delete())
+				size -= length;
+		}
+	}
+	
+	/*
+	 * Returns the entries in the cache directory, leaving out temporary files
+	 */
+	private File[] entries(){
+		File[] entries = directory.listFiles(new FileFilter(){
+			@Override
+			public boolean accept(File file){
+				String name = file.getName();
+				return name.endsWith(ENERGY_EXTENSION) || name.endsWith(SEAM_MAP_EXTENSION);
+			}
+		});
+		return (entries == null) ? new File[0] : entries;
+	}
+	
+	/*
+	 * Deletes temporary files old enough to have been left behind by a job that crashed
+	 */
+	private void sweepTempFiles(){
+		long stale = System.currentTimeMillis() - STALE_TEMP_MILLIS;
+		
+		for(File file : tempFiles()){
+			if(file.lastModified() < stale)
+				file.delete();
+		}
+	}
+	
+	/*
+	 * Returns the temporary files in the cache directory, of entries being written or left behind
+	 */
+	private File[] tempFiles(){
+		File[] temps = directory.listFiles(new FileFilter(){
+			@Override
+			public boolean accept(File file){
+				return file.getName().endsWith(TEMP_EXTENSION);
+			}
+		});
+		return (temps == null) ? new File[0] : temps;
+	}
+	
+	private synchronized void hit(File entry){
+		hit();
+		entry.setLastModified(System.currentTimeMillis());
+	}
+	
+	private synchronized void hit(){
+		hits++;
+	}
+	
+	private synchronized void miss(){
+		misses++;
+	}
+}
@@ -1,505 +1,1882 @@
-import java.awt.Color;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
-public class SeamCarver {
+public class SeamCarver implements Closeable {
+	// Picture matching the current pixels, or null until picture() is next called
 	private Picture picture;
-	private Pixel[][] pixelGraph;
-	private int width;
-	private int height;
+	
+	// Per-pixel values, stored row-major in flat arrays: the value of the pixel
+	// at (row, col) lives at index row * stride + col. While the carver is transposed these
+	// hold the transpose of the image, so that a buffer row is an image column
+	private int[] pixels;
+	private int[] energyGraph;
+	
+	// Spare buffers the pixels and energies are transposed into when switching orientation
+	private int[] transposedPixels;
+	private int[] transposedEnergyGraph;
+	
+	// Column each buffer pixel had when the current batch carve started, used to report the
+	// removed seams in the coordinates of the image the batch was started on
+	private int[] originalColumns;
+	
+	// Marks the buffer pixels claimed by seams during an approximate carving pass
+	private boolean[] claimedPixels;
+	
+	// Total energy of all pixels removed so far, each measured at the time it was removed
+	private long removedEnergy;
+	
+	// Offset (-1, 0 or 1) from each pixel to the predecessor on its cheapest path, filled in by
+	// the most recent distance graph computation
+	private byte[] parentGraph;
+	
+	// Minimum path costs of the previous and current row of the distance graph being
+	// computed. Only two rows are kept, as the seams are rebuilt from the parent graph. The cost
+	// of pixel i is stored at index i+1, with Long.MAX_VALUE sentinels on either side of the row
+	// so that border pixels need no bounds checks
+	private long[] previousDistances;
+	private long[] currentDistances;
+	
+	// Row length of the buffers, and the number of columns and rows of the buffers in use.
+	// All seam operations work on vertical seams of the buffers: horizontal seams of the
+	// image are handled by transposing the buffers first
+	private int stride;
+	private int columns;
+	private int rows;
+	private boolean transposed;
+	
+	// Whether seam removals update the cached energies in place instead of rebuilding them
+	private boolean incrementalEnergy = true;
+	
+	// Energy function used unless another is given. It is stateless, so every carver shares it
+	private static final EnergyFunction DEFAULT_ENERGY_FUNCTION = new DualGradientEnergy();
+	
+	// Energy function the energy graph is computed with
+	private EnergyFunction energyFunction = DEFAULT_ENERGY_FUNCTION;
+	
+	// What a seam's cost is made of in the distance graphs
+	private CostMode costMode = CostMode.BACKWARD;
+	
+	/*
+	 * The cost a seam is charged for each of its pixels
+	 */
+	public enum CostMode{
+		// The energy of the removed pixel
+		BACKWARD,
+		
+		// The energy the removal adds to the image: the gradient between the pixels that become
+		// neighbours when the pixel is removed, which depends on whether the seam arrives from
+		// the left, above or the right
+		FORWARD
+	}
+	
+	// The distance graphs are only built when a seam in their direction is requested. These
+	// flags mark a graph as out of date, and the counters record how many times each was built.
+	// The seam found from each up to date graph is kept until the next change, in an array that
+	// is reused by later searches and may be longer than the seam
+	private boolean yDistanceStale = true;
+	private boolean xDistanceStale = true;
+	private int yDistancePasses;
+	private int xDistancePasses;
+	private int[] verticalSeam;
+	private int[] horizontalSeam;
+	
+	// Pool used to compute full energy graphs in parallel row bands, or null to compute serially.
+	// Each carver created with a parallelism above 1 has its own, shut down by close(), which
+	// scratch carvers share with the carver they copy
+	private ForkJoinPool pool;
+	
+	// Shortest row for which the distance graphs are relaxed in parallel. Below it,
+	// the cost of handing each row to the pool outweighs the work done on it
+	static final int PARALLEL_DISTANCE_MIN_LENGTH = 2048;
+	private int parallelDistanceMinLength = PARALLEL_DISTANCE_MIN_LENGTH;
+	
+	// Coarse-to-fine seam searches halve the image until it would become narrower than this
+	static final int PYRAMID_MIN_WIDTH = 64;
+	
+	// Energy pyramid kept between coarse-to-fine searches, finest level first, or null when it
+	// must be rebuilt. Seam removals update it in place, and the number since it was built is
+	// counted so that searches can rebuild it before its levels drift too far from the buffers
+	private List<PyramidLevel> pyramid;
+	private int pyramidRemovals;
+	
+	// Kernels for the per-row energy and distance loops, vectorized when the Vector API is
+	// available unless the seamcarver.vector system property is false
+	static final RowKernels ROW_KERNELS = loadRowKernels();
+	
+	// Side length of the square blocks the buffers are transposed in, so that both the rows
+	// read and the rows written stay in cache
+	private static final int TRANSPOSE_BLOCK = 64;
 	
 	// Create a seam carver object based on the given picture
 	public SeamCarver(Picture picture){
+		this(picture, 1);
+	}
+	
+	// Create a seam carver object based on the given picture, computing its energy graph
+	// with the given number of threads
+	public SeamCarver(Picture picture, int parallelism){
+		if(picture == null)
+			throw new NullPointerException("Null picture given");
+		
+		setParallelism(parallelism);
+		reset(picture);
+	}
+	
+	// Create a seam carver based on the given picture, computing its energy graph with the given
+	// energy function and number of threads
+	public SeamCarver(Picture picture, EnergyFunction energyFunction, int parallelism){
 		if(picture == null)
 			throw new NullPointerException("Null picture given");
 		
+		if(energyFunction == null)
+			throw new NullPointerException("Null energy function given");
+		
+		setParallelism(parallelism);
+		this.energyFunction = energyFunction;
+		reset(picture);
+	}
+	
+	// Create a seam carver based on the given picture and the energies the given energy function
+	// computed for it, stored row-major like Picture.getPixels, without computing its energy graph
+	public SeamCarver(Picture picture, EnergyFunction energyFunction, int[] energies, int parallelism){
+		if(picture == null)
+			throw new NullPointerException("Null picture given");
+		
+		if(energyFunction == null)
+			throw new NullPointerException("Null energy function given");
+		
+		if(energies == null)
+			throw new NullPointerException("Null energies given");
+		
+		if(energies.length < picture.width() * picture.height())
+			throw new IllegalArgumentException("Energies do not cover a " + picture.width() + "-by-" + picture.height() + " picture");
+		
+		setParallelism(parallelism);
+		this.energyFunction = energyFunction;
+		resetPixels(picture);
+		
+		for(int row = 0; row < rows; row++){
+			System.arraycopy(energies, row * columns, energyGraph, index(row, 0), columns);
+		}
+	}
+	
+	// Create a seam carver reading the pixels straight from the mapped pages of a raster file,
+	// computing its energy graph with the given number of threads
+	public SeamCarver(RasterFile raster, int parallelism) throws IOException{
+		if(raster == null)
+			throw new NullPointerException("Null raster file given");
+		
+		setParallelism(parallelism);
+		
+		this.columns = raster.width();
+		this.rows = raster.height();
+		
+		createPixelGraph();
+		raster.readRows(0, rows, pixels, 0);
+		
+		createEnergyGraph(rows, columns);
+	}
+	
+	// Create a scratch seam carver over a copy of another carver's current pixels and energies,
+	// in the same orientation
+	private SeamCarver(SeamCarver source){
+		this.pool = source.pool;
+		this.incrementalEnergy = source.incrementalEnergy;
+		this.energyFunction = source.energyFunction;
+		this.costMode = source.costMode;
+		this.stride = source.stride;
+		this.columns = source.columns;
+		this.rows = source.rows;
+		this.transposed = source.transposed;
+		
+		this.pixels = source.pixels.clone();
+		this.energyGraph = source.energyGraph.clone();
+		this.parentGraph = new byte[pixels.length];
+		this.previousDistances = new long[Math.max(columns, rows) + 2];
+		this.currentDistances = new long[Math.max(columns, rows) + 2];
+	}
+	
+	/*
+	 * Starts over on the given picture, as if this carver had just been constructed for it with
+	 * the energy function, cost mode, incremental energy and parallelism set on it, which are
+	 * kept. The buffers are kept and only grow when the picture is larger than any seen before,
+	 * so that a carver reused for many pictures stops allocating once it has seen the largest of
+	 * them
+	 */
+	public void reset(Picture picture){
+		if(picture == null)
+			throw new NullPointerException("Null picture given");
+		
+		resetPixels(picture);
+		createEnergyGraph(rows, columns);
+	}
+	
+	/*
+	 * Puts back the settings a carver is constructed with by default, other than parallelism,
+	 * without recomputing or allocating anything. The carver must be reset before it is used again. Used by
+	 * CarverPool, so that a carver never hands one borrower's settings on to the next
+	 */
+	void restoreDefaults(){
+		this.incrementalEnergy = true;
+		this.energyFunction = DEFAULT_ENERGY_FUNCTION;
+		this.costMode = CostMode.BACKWARD;
+		this.parallelDistanceMinLength = PARALLEL_DISTANCE_MIN_LENGTH;
+	}
+	
+	/*
+	 * Starts over on the given picture's pixels, leaving the energy graph to be filled in
+	 */
+	private void resetPixels(Picture picture){
 		this.picture = picture;
 		// Width of image
-		this.width = picture.width();
+		this.columns = picture.width();
 		// Height of image
-		this.height = picture.height();	
-		
-		this.pixelGraph = new Pixel[height][width];
+		this.rows = picture.height();
+		this.transposed = false;
 		
 		createPixelGraph();
-		createEnergyGraph(height, width);
-		createYDistanceGraph(height, width);
-		createXDistanceGraph(height, width);
+		picture.getPixels(pixels);
+		
+		removedEnergy = 0;
+		yDistanceStale = xDistanceStale = true;
+		yDistancePasses = xDistancePasses = 0;
+		pyramid = null;
+	}
+	
+	/*
+	 * Returns a representation of what the current image looks like. The picture is only
+	 * built from the pixel buffer when requested after a seam removal
+	 */
+	public Picture picture(){
+		if(picture == null){
+			picture = new Picture(width(), height());
+			
+			int[] source = pixels;
+			int sourceStride = stride;
+			
+			// Transpose the pixels back into the spare buffer to read whole image rows
+			if(transposed){
+				ensureSpareBuffers();
+				transpose(pixels, stride, rows, columns, transposedPixels, rows);
+				source = transposedPixels;
+				sourceStride = rows;
+			}
+			
+			for(int row = 0; row < height(); row++){
+				picture.setRGB(0, row, width(), source, row * sourceStride);
+			}
+		}
+		return picture;
+	}
+	
+	/*
+	 * Returns the width of the current image
+	 */
+	public int width(){
+		return transposed ? rows : columns;
+	}
+	
+	/*
+	 * Returns the height of the current image
+	 */
+	public int height(){
+		return transposed ? columns : rows;
+	}
+	
+	/*
+	 * Returns the number of times the vertical distance graph has been computed
+	 */
+	public int verticalDistancePasses(){
+		return yDistancePasses;
+	}
+	
+	/*
+	 * Returns the number of times the horizontal distance graph has been computed
+	 */
+	public int horizontalDistancePasses(){
+		return xDistancePasses;
+	}
+	
+	/*
+	 * Returns the total energy of all pixels removed so far, each measured at the time it was
+	 * removed. Comparing it between carvers shows how much worse approximate carving is
+	 */
+	public long removedEnergy(){
+		return removedEnergy;
+	}
+	
+	/*
+	 * Sets the number of threads used to compute full energy graphs. A parallelism of 1
+	 * computes them on the calling thread
+	 */
+	public void setParallelism(int parallelism){
+		if(parallelism < 1)
+			throw new IllegalArgumentException("Parallelism must be at least 1");
+		
+		if(pool != null && pool.getParallelism() == parallelism)
+			return;
+		
+		if(pool != null)
+			pool.shutdown();
+		
+		this.pool = (parallelism == 1) ? null : new ForkJoinPool(parallelism);
+	}
+	
+	/*
+	 * Shuts down the threads this carver computes energy graphs with, if it has any. A closed
+	 * carver still works, computing on the calling thread until its parallelism is set again.
+	 * Carvers created with a parallelism above 1 should be closed once done with, or their
+	 * threads are kept until they time out
+	 */
+	@Override
+	public void close(){
+		if(pool != null)
+			pool.shutdown();
+		
+		this.pool = null;
+	}
+	
+	/*
+	 * Returns the number of pixels the buffers can hold without growing. Used by CarverPool to
+	 * leave out carvers holding on to buffers larger than it keeps
+	 */
+	long capacity(){
+		return pixels.length;
+	}
+	
+	/*
+	 * Sets the shortest row length for which the distance graphs are computed in
+	 * parallel. Used by the benchmarks to find the crossover point
+	 */
+	void setParallelDistanceMinLength(int length){
+		this.parallelDistanceMinLength = length;
+	}
+	
+	/*
+	 * Sets whether seam removals shift the cached energies in place and only recompute the
+	 * pixels next to the removed seam (the default), or rebuild the whole energy graph
+	 */
+	public void setIncrementalEnergy(boolean incrementalEnergy){
+		this.incrementalEnergy = incrementalEnergy;
+	}
+	
+	/*
+	 * Sets the energy function seams are found with, recomputing the energy graph with it
+	 */
+	public void setEnergyFunction(EnergyFunction energyFunction){
+		if(energyFunction == null)
+			throw new NullPointerException("Null energy function given");
+		
+		this.energyFunction = energyFunction;
+		createEnergyGraph(rows, columns);
+		yDistanceStale = xDistanceStale = true;
+		pyramid = null;
+	}
+	
+	/*
+	 * Sets what a seam's cost is made of. Forward costs avoid the artifacts backward costs leave
+	 * where removing a low-energy seam joins up pixels that differ a lot, at the price of
+	 * calculating three gradients per pixel in every seam search. Coarse-to-fine searches always
+	 * use backward costs
+	 */
+	public void setCostMode(CostMode costMode){
+		if(costMode == null)
+			throw new NullPointerException("Null cost mode given");
+		
+		this.costMode = costMode;
+		yDistanceStale = xDistanceStale = true;
+	}
+	
+	/*
+	 * Copies the energies of all pixels of the current image into the given array in row-major
+	 * order, like Picture.getPixels, so that they can be passed back to the constructor later
+	 */
+	public void getEnergies(int[] dst){
+		if(dst == null)
+			throw new NullPointerException("Null array given");
+		
+		if(dst.length < width() * height())
+			throw new IllegalArgumentException("Array is too small for a " + width() + "-by-" + height() + " image");
+		
+		if(transposed){
+			transpose(energyGraph, stride, rows, columns, dst, rows);
+			return;
+		}
+		
+		for(int row = 0; row < rows; row++){
+			System.arraycopy(energyGraph, index(row, 0), dst, row * columns, columns);
+		}
+	}
+	
+	/*
+	 * Returns the energy of the pixel at the given column and given row
+	 */
+	public double energy(int col, int row){
+		if((col < 0 || col >= width()) || (row < 0 || row >= height()))
+			throw new IndexOutOfBoundsException("Coordinates must be within image dimension bounds");
+		
+		// Energy functions give the same energies in either orientation, and the energy graph
+		// is kept up to date with every change to the pixels
+		if(transposed)
+			return energyGraph[index(col, row)];
+		else
+			return energyGraph[index(row, col)];
+	}
+	
+	/*
+	 * Calculates the dual-gradient energy of the pixel at the given column and given row of a
+	 * width-by-height image stored row-major in the given array
+	 */
+	static int energy(int[] pixels, int stride, int width, int height, int col, int row){
+		width = width-1;
+		height = height-1;
+		
+		// Calculating the x-gradient
+		int rightPos = (col + 1 > width) ? 0 : col + 1;
+		int leftPos = (col - 1 < 0) ? width : col - 1;
+		int rightNeighbor = pixels[row * stride + rightPos];
+		int leftNeighbor = pixels[row * stride + leftPos];
+		
+		int xGradient = calculateGradient(rightNeighbor, leftNeighbor);
+		
+		// Calculating the y-gradient
+		int topPos = (row - 1 < 0) ? height : row - 1;
+		int bottomPos = (row + 1 > height) ? 0 : row + 1;
+		
+		int topNeighbor = pixels[topPos * stride + col];
+		int bottomNeighbor = pixels[bottomPos * stride + col];
+		int yGradient = calculateGradient(topNeighbor, bottomNeighbor);
+		
+		return (xGradient + yGradient);
+	}
+	
+	/*
+	 * Calculates the dual-gradient energies of the pixels from colFrom (inclusive) to colTo
+	 * (exclusive) of the given row of a width-by-height image stored row-major in pixels, writing the energy of
+	 * column c to dst[dstOffset + c]. The border columns, whose neighbours wrap around, are
+	 * calculated apart from the rest so that the loop over the interior has no branches
+	 */
+	static void energyRow(int[] pixels, int stride, int width, int height, int row, int colFrom, int colTo, int[] dst, int dstOffset){
+		if(colFrom == 0 && colTo > 0){
+			dst[dstOffset] = energy(pixels, stride, width, height, 0, row);
+			colFrom = 1;
+		}
+		
+		if(colTo == width && colFrom < colTo){
+			dst[dstOffset + width-1] = energy(pixels, stride, width, height, width-1, row);
+			colTo = width-1;
+		}
+		
+		int center = row * stride;
+		int top = ((row == 0) ? height-1 : row-1) * stride;
+		int bottom = ((row == height-1) ? 0 : row+1) * stride;
+		
+		if(colFrom < colTo)
+			ROW_KERNELS.energyInterior(pixels, center, top, bottom, colFrom, colTo, dst, dstOffset);
+	}
+	
+	/*
+	 * Calculates the minimum cost/distance seam from any left pixel to a right pixel
+	 */
+	public int[] findHorizontalSeam(){
+		return Arrays.copyOf(findSeam(true), width());
+	}
+	
+	/*
+	 * Removes the given horizontal pixel seam from the current picture
+	 */
+	public void removeHorizontalSeam(int[] seam){
+		if(seam == null)
+			throw new NullPointerException("Null argument given");
+		
+		if(height() == 1)
+			throw new IllegalArgumentException("Current image has a height of 1");
+		
+		validateHorizontalSeam(seam);
+		
+		orient(true);
+		removeSeam(seam);
+	}
+	
+	/*
+	 * Calculates the minimum cost/distance seam from any top pixel to a bottom pixel
+	 */
+	public int[] findVerticalSeam(){
+		return Arrays.copyOf(findSeam(false), height());
+	}
+	
+	/*
+	 * Approximates the minimum cost vertical seam by searching a pyramid of halved copies of the
+	 * energy graph. The seam is found exactly on the smallest copy, and then refined at each larger
+	 * copy within bandWidth pixels either side of the seam from the copy below it, so that full
+	 * resolution distance work is limited to that band. The pyramid is kept between searches and
+	 * updated by seam removals, and only rebuilt from the whole energy graph once bandWidth seams
+	 * have been removed, so wider bands also rebuild it less often
+	 */
+	public int[] findVerticalSeamCoarseToFine(int bandWidth){
+		if(bandWidth < 1)
+			throw new IllegalArgumentException("Band width must be at least 1");
+		
+		orient(false);
+		return findSeamCoarseToFine(bandWidth);
+	}
+	
+	/*
+	 * Approximates the minimum cost horizontal seam by searching a pyramid of halved copies of the
+	 * energy graph, like findVerticalSeamCoarseToFine
+	 */
+	public int[] findHorizontalSeamCoarseToFine(int bandWidth){
+		if(bandWidth < 1)
+			throw new IllegalArgumentException("Band width must be at least 1");
+		
+		orient(true);
+		return findSeamCoarseToFine(bandWidth);
+	}
+	
+	/*
+	 * Removes the given vertical pixel seam from the current picture
+	 */
+	public void removeVerticalSeam(int[] seam){
+		if(seam == null)
+			throw new NullPointerException("Null argument given");
+		
+		if(width() == 1)
+			throw new IllegalArgumentException("Current image has a width of 1");
+		
+		validateVerticalSeam(seam);
+		
+		orient(false);
+		removeSeam(seam);
+	}
+	
+	/*
+	 * Finds and removes the given number of vertical seams, one after the other. Returns the
+	 * removed seams in order, each given as the columns its pixels had in the image as it was
+	 * before this call
+	 */
+	public List<int[]> carveVertical(int k){
+		if(k < 0 || k >= width())
+			throw new IllegalArgumentException("Number of seams must be between 0 and " + (width()-1));
+		
+		return carve(false, k);
+	}
+	
+	/*
+	 * Finds and removes the given number of horizontal seams, one after the other. Returns the
+	 * removed seams in order, each given as the rows its pixels had in the image as it was
+	 * before this call
+	 */
+	public List<int[]> carveHorizontal(int k){
+		if(k < 0 || k >= height())
+			throw new IllegalArgumentException("Number of seams must be between 0 and " + (height()-1));
+		
+		return carve(true, k);
+	}
+	
+	/*
+	 * Finds and removes the given number of vertical seams, one after the other, like carveVertical
+	 * but without reporting the seams. Once the buffers are large enough this allocates nothing
+	 */
+	public void removeVerticalSeams(int k){
+		if(k < 0 || k >= width())
+			throw new IllegalArgumentException("Number of seams must be between 0 and " + (width()-1));
+		
+		removeSeams(false, k);
+	}
+	
+	/*
+	 * Finds and removes the given number of horizontal seams, one after the other, like
+	 * carveHorizontal but without reporting the seams
+	 */
+	public void removeHorizontalSeams(int k){
+		if(k < 0 || k >= height())
+			throw new IllegalArgumentException("Number of seams must be between 0 and " + (height()-1));
+		
+		removeSeams(true, k);
+	}
+	
+	/*
+	 * Widens the image by the given number of columns. The k lowest-energy vertical seams are found
+	 * together on a scratch copy of the image, and every one of them is then duplicated in a single
+	 * pass, with the inserted pixel averaging the seam pixel and its right neighbour. At most
+	 * width-1 seams can be found at once, so larger enlargements are done in several rounds
+	 */
+	public void insertVerticalSeams(int k){
+		if(k < 0)
+			throw new IllegalArgumentException("Number of seams must not be negative");
+		
+		if(k > 0 && width() == 1)
+			throw new IllegalArgumentException("Current image has a width of 1");
+		
+		insertSeams(false, k);
+	}
+	
+	/*
+	 * Heightens the image by the given number of rows, duplicating the k lowest-energy horizontal
+	 * seams like insertVerticalSeams, with the inserted pixel averaging the seam pixel and the one
+	 * below it
+	 */
+	public void insertHorizontalSeams(int k){
+		if(k < 0)
+			throw new IllegalArgumentException("Number of seams must not be negative");
+		
+		if(k > 0 && height() == 1)
+			throw new IllegalArgumentException("Current image has a height of 1");
+		
+		insertSeams(true, k);
+	}
+	
+	/*
+	 * Resizes the current image to the given dimensions, first removing or inserting vertical
+	 * seams to reach the width and then horizontal seams to reach the height. Like the other
+	 * batch operations, stops between seams with a CancellationException once the calling thread
+	 * is interrupted, leaving the image part way resized
+	 */
+	public void resize(int width, int height){
+		if(width < 1 || height < 1)
+			throw new IllegalArgumentException("Dimensions must be positive");
+		
+		if(width < width())
+			removeVerticalSeams(width() - width);
+		else if(width > width())
+			insertVerticalSeams(width - width());
+		
+		if(height < height())
+			removeHorizontalSeams(height() - height);
+		else if(height > height())
+			insertHorizontalSeams(height - height());
+	}
+	
+	/*
+	 * Removes the given number of vertical seams approximately, taking up to seamsPerPass
+	 * non-crossing seams from each distance graph computation instead of one. Returns the removed
+	 * seams like carveVertical, although seams taken in the same pass are not ordered by cost
+	 */
+	public List<int[]> carveVerticalApproximate(int k, int seamsPerPass){
+		if(k < 0 || k >= width())
+			throw new IllegalArgumentException("Number of seams must be between 0 and " + (width()-1));
+		
+		if(seamsPerPass < 1)
+			throw new IllegalArgumentException("At least one seam must be taken per pass");
+		
+		return carveApproximate(false, k, seamsPerPass);
+	}
+	
+	/*
+	 * Removes the given number of horizontal seams approximately, taking up to seamsPerPass
+	 * non-crossing seams from each distance graph computation instead of one. Returns the removed
+	 * seams like carveHorizontal, although seams taken in the same pass are not ordered by cost
+	 */
+	public List<int[]> carveHorizontalApproximate(int k, int seamsPerPass){
+		if(k < 0 || k >= height())
+			throw new IllegalArgumentException("Number of seams must be between 0 and " + (height()-1));
+		
+		if(seamsPerPass < 1)
+			throw new IllegalArgumentException("At least one seam must be taken per pass");
+		
+		return carveApproximate(true, k, seamsPerPass);
+	}
+	
+	/* ----------- Utility methods ----------- */
+	
+	/*
+	 * Returns the minimum cost seam in the given direction, computing the distance graph for it
+	 * only if the image changed since it was last computed
+	 */
+	private int[] findSeam(boolean horizontal){
+		if(horizontal ? xDistanceStale : yDistanceStale){
+			orient(horizontal);
+			createDistanceGraph(rows, columns);
+			
+			if(horizontal){
+				horizontalSeam = traceSeam(horizontalSeam);
+				xDistanceStale = false;
+				xDistancePasses++;
+			} else {
+				verticalSeam = traceSeam(verticalSeam);
+				yDistanceStale = false;
+				yDistancePasses++;
+			}
+		}
+		return horizontal ? horizontalSeam : verticalSeam;
+	}
+	
+	/*
+	 * Removes k seams in the given direction without validating them, keeping track of the
+	 * original column of every buffer pixel so the seams can be reported in original coordinates
+	 */
+	private List<int[]> carve(boolean horizontal, int k){
+		List<int[]> seams = new ArrayList<int[]>(k);
+		
+		orient(horizontal);
+		resetOriginalColumns();
+		
+		for(int i = 0; i < k; i++){
+			checkInterrupted();
+			
+			int[] seam = findSeam(horizontal);
+			int[] originalSeam = new int[rows];
+			
+			for(int row = 0; row < rows; row++){
+				originalSeam[row] = originalColumns[index(row, seam[row])];
+			}
+			
+			removeFromRows(originalColumns, seam, columns);
+			removeSeam(seam);
+			seams.add(originalSeam);
+		}
+		return seams;
+	}
+	
+	/*
+	 * Removes k seams in the given direction without validating them
+	 */
+	private void removeSeams(boolean horizontal, int k){
+		for(int i = 0; i < k; i++){
+			checkInterrupted();
+			removeSeam(findSeam(horizontal));
+		}
+	}
+	
+	/*
+	 * Stops a batch operation between seams if the calling thread was interrupted, so that a
+	 * service can cancel a carve that runs too long. The interrupt is left for the caller to see
+	 */
+	private static void checkInterrupted(){
+		if(Thread.currentThread().isInterrupted())
+			throw new CancellationException("Carving was interrupted");
+	}
+	
+	/*
+	 * Removes k seams in the given direction, several per distance graph computation. Each pass
+	 * traces seams back from the cheapest bottom-row pixels in order of cost, keeping those whose
+	 * cheapest path does not touch or cross a seam already taken in the pass, and then removes all
+	 * taken seams from each row in one compaction. The cheapest seam is never blocked, so every
+	 * pass removes at least one
+	 */
+	private List<int[]> carveApproximate(boolean horizontal, int k, int seamsPerPass){
+		List<int[]> seams = new ArrayList<int[]>(k);
+		
+		orient(horizontal);
+		resetOriginalColumns();
+		
+		if(claimedPixels == null || claimedPixels.length < pixels.length)
+			claimedPixels = new boolean[pixels.length];
+		
+		while(seams.size() < k){
+			checkInterrupted();
+			createDistanceGraph(rows, columns);
+			
+			if(horizontal)
+				xDistancePasses++;
+			else
+				yDistancePasses++;
+			
+			int[] candidates = bottomRowOrder();
+			int wanted = Math.min(seamsPerPass, k - seams.size());
+			int taken = 0;
+			
+			for(int i = 0; i < columns && taken < wanted; i++){
+				int[] seam = claimSeam(candidates[i]);
+				
+				if(seam == null)
+					continue;
+				
+				int[] originalSeam = new int[rows];
+				for(int row = 0; row < rows; row++){
+					originalSeam[row] = originalColumns[index(row, seam[row])];
+				}
+				seams.add(originalSeam);
+				taken++;
+			}
+			
+			removeClaimedPixels(taken);
+		}
+		return seams;
+	}
+	
+	/*
+	 * Returns the bottom-row columns ordered by the cost of their cheapest path, ties broken by
+	 * column. Costs and columns are packed as cost << 24 | column and sorted as longs when they
+	 * fit, as they do for the default energy function on images of fewer than a million rows.
+	 * Otherwise, as with large custom energies, the columns are sorted by cost directly
+	 */
+	private int[] bottomRowOrder(){
+		final long[] costs = previousDistances;
+		long maxCost = 0;
+		long minCost = 0;
+		
+		for(int c = 0; c < columns; c++){
+			maxCost = Math.max(maxCost, costs[c+1]);
+			minCost = Math.min(minCost, costs[c+1]);
+		}
+		
+		int[] order = new int[columns];
+		
+		if(minCost >= 0 && maxCost < (1L << 39) && columns <= (1 << 24)){
+			long[] packed = new long[columns];
+			for(int c = 0; c < columns; c++){
+				packed[c] = (costs[c+1] << 24) | c;
+			}
+			Arrays.sort(packed);
+			
+			for(int i = 0; i < columns; i++){
+				order[i] = (int) (packed[i] & 0xFFFFFF);
+			}
+			return order;
+		}
+		
+		Integer[] boxed = new Integer[columns];
+		for(int c = 0; c < columns; c++){
+			boxed[c] = c;
+		}
+		
+		// The sort is stable and the columns start in order, so equal costs stay in column order
+		Arrays.sort(boxed, new Comparator<Integer>(){
+			@Override
+			public int compare(Integer a, Integer b){
+				return Long.compare(costs[a+1], costs[b+1]);
+			}
+		});
+		
+		for(int i = 0; i < columns; i++){
+			order[i] = boxed[i];
+		}
+		return order;
+	}
+	
+	/*
+	 * Traces a seam up from the given bottom-row column by following the parent graph. Claims and
+	 * returns the seam, or returns null if it runs into or crosses a seam already claimed. Blocked
+	 * seams are dropped rather than rerouted, as rerouting them along the claimed seams costs far more
+	 * energy than leaving them for the next pass
+	 */
+	private int[] claimSeam(int bottomCol){
+		int[] seam = new int[rows];
+		int col = bottomCol;
+		
+		if(claimedPixels[index(rows-1, col)])
+			return null;
+		
+		seam[rows-1] = col;
+		
+		for(int row = rows-1; row > 0; row--){
+			int next = col + parentGraph[index(row, col)];
+			
+			if(isBlocked(row, col, next))
+				return null;
+			
+			seam[row-1] = col = next;
+		}
+		
+		for(int row = 0; row < rows; row++){
+			claimedPixels[index(row, seam[row])] = true;
+		}
+		return seam;
+	}
+	
+	/*
+	 * Returns whether a seam at the given column of the given row cannot continue to the given
+	 * column of the row above, because that pixel is claimed or the step would cross a claimed seam
+	 */
+	private boolean isBlocked(int row, int col, int next){
+		if(claimedPixels[index(row-1, next)])
+			return true;
+		
+		return next != col && claimedPixels[index(row, next)] && claimedPixels[index(row-1, col)];
+	}
+	
+	/*
+	 * Removes the given number of claimed pixels from every row in one pass, clearing the claims
+	 */
+	private void removeClaimedPixels(int count){
+		for(int row = 0; row < rows; row++){
+			int cursor = index(row, 0);
+			
+			for(int col = 0; col < columns; col++){
+				int i = index(row, col);
+				
+				if(claimedPixels[i]){
+					claimedPixels[i] = false;
+					removedEnergy += energyGraph[i];
+					continue;
+				}
+				
+				pixels[cursor] = pixels[i];
+				originalColumns[cursor] = originalColumns[i];
+				cursor++;
+			}
+		}
+		
+		this.picture = null;
+		this.columns = columns - count;
+		
+		// Several seams were removed from each row, so the energies are rebuilt in full
+		createEnergyGraph(rows, columns);
+		yDistanceStale = xDistanceStale = true;
+		pyramid = null;
+	}
+	
+	/*
+	 * Duplicates k seams in the given direction, in rounds of at most columns-1 seams. Each round
+	 * carves its seams from a scratch copy, marks them, and writes every row out once into a
+	 * buffer wide enough to hold the inserted pixels
+	 */
+	private void insertSeams(boolean horizontal, int k){
+		orient(horizontal);
+		
+		while(k > 0){
+			int count = Math.min(k, columns-1);
+			List<int[]> seams = new SeamCarver(this).carve(horizontal, count);
+			
+			if(claimedPixels == null || claimedPixels.length < pixels.length)
+				claimedPixels = new boolean[pixels.length];
+			
+			for(int[] seam : seams){
+				for(int row = 0; row < rows; row++){
+					claimedPixels[index(row, seam[row])] = true;
+				}
+			}
+			
+			// Write the widened rows tightly packed into the spare buffer, growing it
+			// geometrically if the widened image does not fit
+			int widened = columns + count;
+			int size = rows * widened;
+			int[] expanded = transposedPixels;
+			
+			if(expanded == null || expanded.length < size)
+				expanded = new int[Math.max(size, 2 * pixels.length)];
+			
+			for(int row = 0; row < rows; row++){
+				int cursor = row * widened;
+				
+				for(int col = 0; col < columns; col++){
+					int i = index(row, col);
+					expanded[cursor++] = pixels[i];
+					
+					if(claimedPixels[i]){
+						claimedPixels[i] = false;
+						int neighbor = (col < columns-1) ? pixels[i+1] : pixels[i-1];
+						expanded[cursor++] = averageColors(pixels[i], neighbor);
+					}
+				}
+			}
+			
+			this.transposedPixels = pixels;
+			this.pixels = expanded;
+			this.stride = widened;
+			this.columns = widened;
+			this.picture = null;
+			
+			if(energyGraph.length < pixels.length){
+				energyGraph = new int[pixels.length];
+				parentGraph = new byte[pixels.length];
+			}
+			
+			createEnergyGraph(rows, columns);
+			yDistanceStale = xDistanceStale = true;
+			pyramid = null;
+			
+			k -= count;
+		}
+	}
+	
+	/*
+	 * Finds a seam of the buffers coarse-to-fine. Each pyramid level averages 2x2 blocks of energies
+	 * of the level above it, starting from the energy graph. The seam found on a level is scaled up
+	 * and widened by bandWidth on each side to give the columns searched on the next finer level,
+	 * down to the buffers themselves.
+	 *
+	 * Building the pyramid reads the whole energy graph, so it is kept between searches and seam
+	 * removals only update the blocks around each removed seam (see updatePyramid). Those updates
+	 * let the levels drift from the blocks they would be rebuilt with by up to half a column per
+	 * removal, so the pyramid is rebuilt once bandWidth seams have been removed since it was
+	 * built. A search therefore costs O(W*H/bandWidth) amortized for the pyramid, on top of the
+	 * band searches, rather than O(W*H)
+	 */
+	private int[] findSeamCoarseToFine(int bandWidth){
+		if(pyramid == null || pyramidRemovals >= bandWidth)
+			buildPyramid();
+		
+		List<PyramidLevel> levels = pyramid;
+		PyramidLevel level;
+		int[] seam = null;
+		
+		for(int l = levels.size(); l >= 0; l--){
+			level = (l == 0) ? null : levels.get(l-1);
+			int levelColumns = (l == 0) ? columns : level.columns;
+			int levelRows = (l == 0) ? rows : level.rows;
+			
+			int[] bandFrom = new int[levelRows];
+			int[] bandTo = new int[levelRows];
+			
+			for(int row = 0; row < levelRows; row++){
+				if(seam == null){
+					bandFrom[row] = 0;
+					bandTo[row] = levelColumns-1;
+				} else {
+					int coarseCol = seam[Math.min(row / 2, seam.length-1)];
+					bandFrom[row] = Math.max(2 * coarseCol - bandWidth, 0);
+					bandTo[row] = Math.min(2 * coarseCol + 1 + bandWidth, levelColumns-1);
+				}
+			}
+			
+			seam = findBandedSeam(level, levelColumns, levelRows, bandFrom, bandTo);
+		}
+		return seam;
+	}
+	
+	/*
+	 * Builds the energy pyramid from the energy graph, halving it until the next level would be
+	 * narrower than PYRAMID_MIN_WIDTH or shorter than two rows
+	 */
+	private void buildPyramid(){
+		pyramid = new ArrayList<PyramidLevel>();
+		pyramidRemovals = 0;
+		
+		PyramidLevel level = new PyramidLevel(energyGraph, stride, columns, rows);
+		
+		while(level.columns / 2 >= PYRAMID_MIN_WIDTH && level.rows / 2 >= 2){
+			level = level.halve();
+			pyramid.add(level);
+		}
+	}
+	
+	/*
+	 * Updates the energy pyramid after the given seam was removed from the buffers. Each level
+	 * follows the seam of the level below it, halved, removing it whenever the level below has
+	 * become too narrow to give all of its blocks two columns, so that every level stays half as
+	 * wide as the one below. The blocks around the seam, whose energies the removal changed, are
+	 * then averaged again from the level below. Levels that have become narrower than
+	 * PYRAMID_MIN_WIDTH are dropped
+	 */
+	private void updatePyramid(int[] seam){
+		int[] lower = energyGraph;
+		int lowerStride = stride;
+		int lowerColumns = columns;
+		int[] lowerSeam = seam;
+		
+		// Columns either side of the seam whose energies changed, at the finest level
+		int margin = 2 * energyFunction.radius();
+		
+		for(PyramidLevel level : pyramid){
+			margin = margin / 2 + 1;
+			boolean remove = lowerColumns / 2 < level.columns;
+			
+			for(int row = 0; row < level.rows; row++){
+				int top = lowerSeam[2*row];
+				int bottom = lowerSeam[2*row + 1];
+				level.seam[row] = Math.min(Math.min(top, bottom) / 2, level.columns-1);
+			}
+			
+			if(remove)
+				level.removeColumns(level.seam);
+			
+			for(int row = 0; row < level.rows; row++){
+				int col = level.seam[row];
+				level.average(lower, lowerStride, row, Math.max(col - margin, 0), Math.min(col + margin, level.columns-1));
+			}
+			
+			lower = level.energies;
+			lowerStride = level.stride;
+			lowerColumns = level.columns;
+			lowerSeam = level.seam;
+		}
+		
+		while(!pyramid.isEmpty() && pyramid.get(pyramid.size()-1).columns < PYRAMID_MIN_WIDTH){
+			pyramid.remove(pyramid.size()-1);
+		}
+		pyramidRemovals++;
+	}
+	
+	/*
+	 * Finds the minimum cost seam through the given pyramid level (or the buffers, for a null level)
+	 * that stays within the columns bandFrom[row] to bandTo[row] of every row
+	 */
+	private int[] findBandedSeam(PyramidLevel level, int levelColumns, int levelRows, int[] bandFrom, int[] bandTo){
+		byte[] parents = (level == null) ? parentGraph : new byte[levelColumns * levelRows];
+		int parentStride = (level == null) ? stride : levelColumns;
+		
+		if(previousDistances.length < levelColumns + 2){
+			previousDistances = new long[levelColumns + 2];
+			currentDistances = new long[levelColumns + 2];
+		}
+		
+		for(int row = 0; row < levelRows; row++){
+			long[] previous = previousDistances;
+			long[] current = currentDistances;
+			
+			for(int c = bandFrom[row]; c <= bandTo[row]; c++){
+				long energy = (level == null) ? energyGraph[index(row, c)] : level.energy(c, row);
+				
+				if(row == 0){
+					current[c+1] = energy;
+					continue;
+				}
+				
+				// Pick the cheapest predecessor inside the previous row's band, ties going to the
+				// left-most. Pixels with no predecessor in the band cannot be reached
+				long minDist = Long.MAX_VALUE;
+				byte parent = 0;
+				
+				for(int offset = -1; offset <= 1; offset++){
+					int p = c + offset;
+					
+					if(p >= bandFrom[row-1] && p <= bandTo[row-1] && previous[p+1] < minDist){
+						minDist = previous[p+1];
+						parent = (byte) offset;
+					}
+				}
+				
+				current[c+1] = (minDist == Long.MAX_VALUE) ? Long.MAX_VALUE : minDist + energy;
+				parents[row * parentStride + c] = parent;
+			}
+			swapDistances();
+		}
+		
+		int[] seam = new int[levelRows];
+		int bottomRow = levelRows-1;
+		int minPathCol = bandFrom[bottomRow];
+		
+		for(int c = bandFrom[bottomRow]; c <= bandTo[bottomRow]; c++){
+			if(previousDistances[c+1] < previousDistances[minPathCol+1])
+				minPathCol = c;
+		}
+		
+		seam[bottomRow] = minPathCol;
+		for(int r = bottomRow; r > 0; r--){
+			seam[r-1] = minPathCol = minPathCol + parents[r * parentStride + minPathCol];
+		}
+		return seam;
+	}
+	
+	/*
+	 * Sets every buffer pixel's original column to its current column
+	 */
+	private void resetOriginalColumns(){
+		if(originalColumns == null || originalColumns.length < pixels.length)
+			originalColumns = new int[pixels.length];
+		
+		for(int row = 0; row < rows; row++){
+			for(int col = 0; col < columns; col++){
+				originalColumns[index(row, col)] = col;
+			}
+		}
+	}
+	
+	/*
+	 * Returns the index of the pixel at the given position in the buffers
+	 */
+	private int index(int row, int col){
+		return row * stride + col;
+	}
+	
+	
+	/*
+	 * Verifies whether a given vertical seam is valid
+	 */
+	public void validateVerticalSeam(int[] seam){
+		int width = width();
+		int height = height();
+		
+		if(seam.length != height)
+			throw new IllegalArgumentException("Seam length is not equal to the images height");
+		
+		for(int row = 0; row < height; row++){
+			boolean hasLargeDifference = (row < height-1 && Math.abs(seam[row] - seam[row+1]) > 1) ? true : false;
+			boolean entryisOutsideBounds = (seam[row] < 0 || seam[row] >= width) ? true : false;
+			
+			if(hasLargeDifference)
+				throw new IllegalArgumentException("One or more adjacent entries differ by more than 1");
+			
+			if(entryisOutsideBounds)
+				throw new IllegalArgumentException("An entry within the vertical seam is outside the image bounds");
+		}
+	}
+	
+	/*
+	 * Verifies whether a given horizontal seam is valid
+	 */
+	public void validateHorizontalSeam(int[] seam){
+		int width = width();
+		int height = height();
+		
+		if(seam.length != width)
+			throw new IllegalArgumentException("Seam length is not equal to the images width");
+		
+		for(int col = 0; col < width; col++){
+			boolean hasLargeDifference = (col < width-1 && Math.abs(seam[col] - seam[col+1]) > 1) ? true : false;
+			boolean entryisOutsideBounds = (seam[col] < 0 || seam[col] >= height) ? true : false;
+			
+			if(hasLargeDifference)
+				throw new IllegalArgumentException("One or more adjacent entries differ by more than 1");
+			
+			if(entryisOutsideBounds)
+				throw new IllegalArgumentException("An entry within the horizontal seam is outside the image bounds");
+		}
 	}
 	
 	/*
-	 * Returns a representation of what the current image looks like
+	 * Transposes the buffers, if needed, so that buffer rows are image rows (not transposed) or
+	 * image columns (transposed). The buffers are only transposed when the orientation changes, so
+	 * consecutive operations in the same direction share the same state
 	 */
-	public Picture picture(){
-		return picture;
+	private void orient(boolean transposed){
+		if(this.transposed == transposed)
+			return;
+		
+		ensureSpareBuffers();
+		
+		// The transposed buffers are packed tightly, with one buffer row per current column
+		transpose(pixels, stride, rows, columns, transposedPixels, rows);
+		transpose(energyGraph, stride, rows, columns, transposedEnergyGraph, rows);
+		
+		int[] swap = pixels;
+		pixels = transposedPixels;
+		transposedPixels = swap;
+		
+		swap = energyGraph;
+		energyGraph = transposedEnergyGraph;
+		transposedEnergyGraph = swap;
+		
+		int oldRows = rows;
+		this.rows = columns;
+		this.columns = oldRows;
+		this.stride = oldRows;
+		this.transposed = transposed;
+		
+		// The pyramid halves the buffers in their old orientation
+		pyramid = null;
 	}
 	
 	/*
-	 * Returns the width of the current image
+	 * Allocates the spare buffers used for transposing, if they are missing or smaller than the
+	 * buffers in use
 	 */
-	public int width(){
-		return width;
+	private void ensureSpareBuffers(){
+		if(transposedPixels == null || transposedPixels.length < pixels.length)
+			transposedPixels = new int[pixels.length];
+		
+		if(transposedEnergyGraph == null || transposedEnergyGraph.length < energyGraph.length)
+			transposedEnergyGraph = new int[energyGraph.length];
 	}
 	
 	/*
-	 * Returns the height of the current image
+	 * Writes the transpose of the rows-by-columns matrix in source into destination, one square
+	 * block at a time
 	 */
-	public int height(){
-		return height;
+	private static void transpose(int[] source, int sourceStride, int rows, int columns, int[] destination, int destinationStride){
+		for(int rowBlock = 0; rowBlock < rows; rowBlock += TRANSPOSE_BLOCK){
+			int rowEnd = Math.min(rowBlock + TRANSPOSE_BLOCK, rows);
+			
+			for(int colBlock = 0; colBlock < columns; colBlock += TRANSPOSE_BLOCK){
+				int colEnd = Math.min(colBlock + TRANSPOSE_BLOCK, columns);
+				
+				for(int row = rowBlock; row < rowEnd; row++){
+					for(int col = colBlock; col < colEnd; col++){
+						destination[col * destinationStride + row] = source[row * sourceStride + col];
+					}
+				}
+			}
+		}
 	}
 	
 	/*
-	 * Calculates the energy of the pixel at the given column and given row
+	 * Removes the given seam of buffer columns, one per buffer row
 	 */
-	public double energy(int col, int row){
-		int width = this.width-1;
-		int height = this.height-1;
+	private void removeSeam(int[] seam){
+		for(int row = 0; row < rows; row++){
+			removedEnergy += energyGraph[index(row, seam[row])];
+		}
 		
-		if((col < 0 || col > width) || (row < 0 || row > height))
-			throw new IndexOutOfBoundsException("Coordinates must be within image dimension bounds");
-	
-		// Calculating the x-gradient 
-		int rightPos = (col + 1 > width) ? 0 : col + 1; 
-		int leftPos = (col - 1 < 0) ? width : col - 1;
-		Color rightNeighbor = picture.get(rightPos, row);
-		Color leftNeighbor = picture.get(leftPos, row);
+		removeFromRows(pixels, seam, columns);
 		
-		int xGradient = calculateGradient(rightNeighbor, leftNeighbor);
+		this.picture = null;
+		this.columns = columns-1;
 		
-		// Calculating the y-gradient 
-		int topPos = (row - 1 < 0) ? height : row - 1;
-		int bottomPos = (row + 1 > height) ? 0 : row + 1;
+		// Recomputes the energy and distance values in the existing graph arrays.
+		// This is necessary as these values will change after a seam is removed
+		if(incrementalEnergy)
+			updateEnergyGraph(seam);
+		else
+			createEnergyGraph(rows, columns);
 		
-		Color topNeighbor = picture.get(col, topPos);
-		Color bottomNeighbor = picture.get(col, bottomPos);
-		int yGradient = calculateGradient(topNeighbor, bottomNeighbor);
+		if(pyramid != null)
+			updatePyramid(seam);
 		
-		return (xGradient + yGradient);
+		// Both distance graphs are rebuilt lazily by the next seam search
+		yDistanceStale = xDistanceStale = true;
 	}
-
+	
 	/*
-	 * Calculates the minimum cost/distance seam from any left pixel to a right pixel
+	 * Removes the entry at the given seam column from each row of a buffer with the given number of
+	 * columns, by shifting the entries right of it left by one
 	 */
-	public int[] findHorizontalSeam(){
-		int[] seam = new int[width];
-		
-		int currentCol = width-1;
-		int minPathRow = 0;
-		
-		// Find the smallest distance value in the right-most column
-		for(int r = 0; r < height; r++){
-			if(getPixel(r, currentCol).getXDistance() < getPixel(minPathRow, currentCol).getXDistance()){
-				seam[currentCol] = minPathRow = r;
-			}
+	private void removeFromRows(int[] buffer, int[] seam, int columns){
+		for(int row = 0; row < rows; row++){
+			int col = seam[row];
+			System.arraycopy(buffer, index(row, col+1), buffer, index(row, col), columns-1-col);
+		}
+	}
+	
+	/*
+	 * Creates the energy graph by assigning each pixel its respective energy value
+	 */
+	private void createEnergyGraph(int height, int width){
+		if(pool == null)
+			createEnergyRows(0, height, width);
+		else
+			pool.invoke(new EnergyBandTask(0, height, width));
+	}
+	
+	/*
+	 * Assigns each pixel in the rows from rowFrom (inclusive) to rowTo (exclusive) its energy value
+	 */
+	private void createEnergyRows(int rowFrom, int rowTo, int width){
+		for(int row = rowFrom; row < rowTo; row++){
+			energyFunction.energyRow(pixels, stride, width, rows, row, 0, width, energyGraph, index(row, 0));
+		}
+	}
+	
+	/*
+	 * Updates the energy graph after the given seam was removed. The energies right of the seam
+	 * are shifted left by one, and only the pixels whose neighbourhoods changed are recomputed:
+	 * those within the energy function's radius of the seam positions of the rows within that
+	 * radius, and those within the radius of the wrapping border columns
+	 */
+	private void updateEnergyGraph(int[] seam){
+		for(int row = 0; row < rows; row++){
+			int col = seam[row];
+			System.arraycopy(energyGraph, index(row, col+1), energyGraph, index(row, col), columns-col);
 		}
 		
-		// Backtrack from the current minimum cost pixel to create a minimum cost path that reaches
-	    // a leftmost pixel
-		for(int c = currentCol; c > 0; c--){
-			int sumTerm = -1;
+		int radius = energyFunction.radius();
+		
+		for(int row = 0; row < rows; row++){
+			// Leftmost and rightmost seam positions of this row and its (wrapping) vertical
+			// neighbours within the radius
+			int min = seam[row];
+			int max = seam[row];
 			
-			for(int i = 0; i < 3; i++){
-				// Calculates row index to check
-				int row = minPathRow + (sumTerm++);
-				
-				if((row < 0) || (row >= height)){
-					continue;
-				} 
-				
-				int minDist = getPixel(minPathRow, c).getXDistance();
-				int dist = getPixel(row, c-1).getXDistance() + getPixel(minPathRow, c).getEnergy();
-				
-				// If the pixel at (row, c-1) led to us based on our distance in XdistGraph,
-				// add the pixels row to the seam
-				if(dist == minDist){
-					seam[c-1] = minPathRow = row;
-					break;
-				}
+			for(int offset = 1; offset <= radius; offset++){
+				int above = seam[Math.floorMod(row - offset, rows)];
+				int below = seam[(row + offset) % rows];
+				min = Math.min(min, Math.min(above, below));
+				max = Math.max(max, Math.max(above, below));
 			}
+			
+			int from = Math.max(min - radius, 0);
+			int to = Math.min(max + radius - 1, columns-1);
+			int rowStart = index(row, 0);
+			
+			if(from <= to)
+				energyFunction.energyRow(pixels, stride, columns, rows, row, from, to+1, energyGraph, rowStart);
+			
+			// The left and right borders wrap around to each other
+			energyFunction.energyRow(pixels, stride, columns, rows, row, 0, Math.min(radius, columns), energyGraph, rowStart);
+			energyFunction.energyRow(pixels, stride, columns, rows, row, Math.max(columns - radius, 0), columns, energyGraph, rowStart);
 		}
-		return seam;
 	}
 	
 	/*
-	 * Removes the given horizontal pixel seam from the current picture
+	 * Creates the distance graph by assigning each pixel its cheapest predecessor on a
+	 * path from any top-most row. The distances of the bottom-most row are left in
+	 * previousDistances
 	 */
-	public void removeHorizontalSeam(int[] seam){
-		if(seam == null)
-			throw new NullPointerException("Null argument given");
-		
-		if(width == 1)
-			throw new IllegalArgumentException("Current image has a width of 1");
+	private void createDistanceGraph(int height, int width){
+		if(previousDistances.length < width + 2){
+			previousDistances = new long[width + 2];
+			currentDistances = new long[width + 2];
+		}
 		
-		validateHorizontalSeam(seam);
+		setDistanceSentinels(width);
 		
-		// Blank image used to recreate old image with the pixels in the given seam removed
-		Picture newPicture = new Picture(width, height-1);
+		if(pool != null && width >= parallelDistanceMinLength){
+			pool.invoke(new DistanceWavefrontTask(height, width));
+			return;
+		}
 		
-		// Loop through current image
-		for(int col = 0; col < width; col++){
-			for(int row = 0, cursor = 0; row < height; row++){
-				// If the row we're on matches the row to remove
-				// at our current column (based on seam), don't add it to the new picture
-				if(row == seam[col])
-					continue;
-				
-				Color color = picture.get(col, row);
-				newPicture.set(col, cursor++, color);
-			}
+		for(int row = 0; row < height; row++){
+			relaxDistances(row, 0, width);
+			swapDistances();
+		}
+	}
+	
+	/*
+	 * Pulls the minimum cost to reach the pixels in the given row, from colFrom (inclusive) to
+	 * colTo (exclusive), from the previous row. Disjoint column ranges of the same row can be
+	 * relaxed at the same time
+	 */
+	private void relaxDistances(int row, int colFrom, int colTo){
+		if(costMode == CostMode.FORWARD){
+			relaxForwardDistances(row, colFrom, colTo);
+			return;
 		}
 		
-		this.picture = newPicture;
-		this.height = height-1;
+		long[] previous = previousDistances;
+		long[] current = currentDistances;
+		int rowStart = index(row, 0);
 		
-		// Allocates new 2D array to store the new energy and distance values.
-		// This is necessary as these values will change after a seam is removed
-		this.pixelGraph = new Pixel[height][width];
+		// If we're on the top-most row, their distance from a starting point 0 is
+		// unchanged from their initial energy
+		if(row == 0){
+			for(int c = colFrom; c < colTo; c++){
+				current[c+1] = energyGraph[rowStart + c];
+			}
+			return;
+		}
 		
-		createPixelGraph();
-		createEnergyGraph(height, width);
-		createYDistanceGraph(height, width);
-		createXDistanceGraph(height, width);
+		ROW_KERNELS.relax(previous, current, energyGraph, parentGraph, rowStart, colFrom, colTo);
 	}
 	
 	/*
-	 * Calculates the minimum cost/distance seam from any top pixel to a bottom pixel
+	 * Relaxes the given columns of a row like relaxDistances, but with forward costs. Removing a
+	 * pixel makes its left and right neighbours adjacent, and a seam arriving diagonally also
+	 * makes the pixel above adjacent to the neighbour on the side it came from. Each transition
+	 * costs the gradients between the pixels it makes adjacent, calculated straight from the pixel
+	 * buffer. Neighbours past the left and right borders are taken to be the border pixel itself
 	 */
-	public int[] findVerticalSeam(){	
-		int[] seam = new int[height];
+	private void relaxForwardDistances(int row, int colFrom, int colTo){
+		long[] previous = previousDistances;
+		long[] current = currentDistances;
+		int rowStart = index(row, 0);
+		int lastCol = columns-1;
 		
-		int currentRow = height-1;
-		int minPathCol = 0;
-		
-		// Find pixel in the bottom-most row with the lowest distance/cost
-		for(int c = 0; c < width; c++){
-			if((getPixel(currentRow, c).getYDistance() < getPixel(currentRow, minPathCol).getYDistance())){
-				seam[currentRow] = minPathCol = c;
+		if(row == 0){
+			for(int c = colFrom; c < colTo; c++){
+				current[c+1] = calculateGradient(pixels[rowStart + Math.max(c-1, 0)], pixels[rowStart + Math.min(c+1, lastCol)]);
 			}
+			return;
 		}
 		
-		// Backtrack from the current minimum cost pixel to create a minimum cost path that reaches
-		// a topmost pixel
-		for(int r = currentRow; r > 0; r--){
-			int sumTerm = -1;
+		// The border columns have a missing neighbour and a sentinel on one side, so they are
+		// relaxed apart from the interior columns, which need no bounds checks
+		int interiorFrom = Math.max(colFrom, 1);
+		int interiorTo = Math.min(colTo, lastCol);
+		
+		if(colFrom == 0)
+			relaxForwardBorder(row, 0);
+		
+		int aboveStart = index(row-1, 0);
+		
+		for(int c = interiorFrom; c < interiorTo; c++){
+			int left = pixels[rowStart + c - 1];
+			int right = pixels[rowStart + c + 1];
+			int above = pixels[aboveStart + c];
+			long up = calculateGradient(left, right);
 			
-			for(int i = 0; i < 3; i++){
-				// Calculate column index to check
-				int col = minPathCol + (sumTerm++);
-				
-				if((col < 0) || (col >= width)){
-					continue;
-				} 
-				
-				int minDist = getPixel(r, minPathCol).getYDistance();
-				int dist = getPixel(r-1, col).getYDistance() + getPixel(r, minPathCol).getEnergy();
-				
-				if(dist == minDist){
-					seam[r-1] = minPathCol = col;
-					break;
-				}
+			long fromLeft = previous[c] + up + calculateGradient(above, left);
+			long fromAbove = previous[c+1] + up;
+			long fromRight = previous[c+2] + up + calculateGradient(above, right);
+			
+			// Same order of comparisons as the backward costs, ties going to the left-most
+			long minDist = fromAbove;
+			byte parent = 0;
+			
+			if(fromLeft <= minDist){
+				minDist = fromLeft;
+				parent = -1;
+			}
+			if(fromRight < minDist){
+				minDist = fromRight;
+				parent = 1;
 			}
+			
+			current[c+1] = minDist;
+			parentGraph[rowStart + c] = parent;
 		}
-		return seam;
+		
+		if(colTo == columns && lastCol > 0)
+			relaxForwardBorder(row, lastCol);
 	}
 	
 	/*
-	 * Removes the given vertical pixel seam from the current picture
+	 * Relaxes a single border column of a row with forward costs, skipping the sentinels either
+	 * side of the previous row's distances
 	 */
-	public void removeVerticalSeam(int[] seam){
-		if(seam == null)
-			throw new NullPointerException("Null argument given");
+	private void relaxForwardBorder(int row, int c){
+		long[] previous = previousDistances;
+		int rowStart = index(row, 0);
+		int lastCol = columns-1;
 		
-		if(height == 1)
-			throw new IllegalArgumentException("Current image has a height of 1");
+		int left = pixels[rowStart + Math.max(c-1, 0)];
+		int right = pixels[rowStart + Math.min(c+1, lastCol)];
+		int above = pixels[index(row-1, c)];
+		long up = calculateGradient(left, right);
 		
-		Picture newPicture = new Picture(width-1, height);
+		long minDist = previous[c+1] + up;
+		byte parent = 0;
 		
-		for(int row = 0; row < height; row++){
-			for(int col = 0, cursor = 0; col < width; col++){
-				if(col == seam[row]){
-					continue;
-				}
-				Color color = picture.get(col, row);
-				newPicture.set(cursor++, row, color);
+		if(previous[c] != Long.MAX_VALUE){
+			long fromLeft = previous[c] + up + calculateGradient(above, left);
+			
+			if(fromLeft <= minDist){
+				minDist = fromLeft;
+				parent = -1;
+			}
+		}
+		
+		if(previous[c+2] != Long.MAX_VALUE){
+			long fromRight = previous[c+2] + up + calculateGradient(above, right);
+			
+			if(fromRight < minDist){
+				minDist = fromRight;
+				parent = 1;
 			}
 		}
 		
-		this.picture = newPicture;
-		this.width = width-1;
+		currentDistances[c+1] = minDist;
+		parentGraph[rowStart + c] = parent;
+	}
+	
+	/*
+	 * Builds the minimum cost seam from the distance graph that was just computed, into the given
+	 * array if it is long enough
+	 */
+	private int[] traceSeam(int[] seam){
+		if(seam == null || seam.length < rows)
+			seam = new int[grow(seam == null ? 0 : seam.length, rows)];
 		
-		this.pixelGraph = new Pixel[height][width];
+		int currentRow = rows-1;
+		int minPathCol = 0;
 		
-		// Allocates new 2D array to store the new energy and distance values.
-		// This is necessary as these values will change after a seam is removed
-		createPixelGraph();
+		// Find pixel in the bottom-most row with the lowest distance/cost, which is the last
+		// row that was relaxed
+		for(int c = 0; c < columns; c++){
+			if(previousDistances[c+1] < previousDistances[minPathCol+1]){
+				minPathCol = c;
+			}
+		}
+		seam[currentRow] = minPathCol;
 		
-		createEnergyGraph(height, this.width);
-		createYDistanceGraph(height, this.width);
-		createXDistanceGraph(height, this.width);
+		// Follow each pixel's parent offset back to a topmost pixel
+		for(int r = currentRow; r > 0; r--){
+			seam[r-1] = minPathCol = minPathCol + parentGraph[index(r, minPathCol)];
+		}
+		return seam;
 	}
 	
-	/* ----------- Utility methods ----------- */
-	
 	/*
-	 * Retrieves the pixel at the given position in the graph
+	 * Places the out-of-bounds sentinels around rows of the given length in both distance buffers
 	 */
-	private Pixel getPixel(int row, int col){
-		if((row < 0 || row >= height) || (col < 0 || col >= width))
-			throw new ArrayIndexOutOfBoundsException("Pixel location exceeds the images dimensions");
-		
-		return pixelGraph[row][col];
+	private void setDistanceSentinels(int length){
+		previousDistances[0] = currentDistances[0] = Long.MAX_VALUE;
+		previousDistances[length+1] = currentDistances[length+1] = Long.MAX_VALUE;
 	}
 	
-
 	/*
-	 * Verifies whether a given vertical seam is valid
+	 * Makes the row of distances that was just relaxed the previous row for the next one
 	 */
-	public void validateVerticalSeam(int[] seam){
-		if(seam.length != height)
-			throw new IllegalArgumentException("Seam length is not equal to the images height");
-		
-		for(int row = 0; row < height-1; row++){
-			boolean hasLargeDifference = (Math.abs(seam[row] - seam[row+1])) > 1 ? true : false;
-			boolean entryisOutsideBounds = (seam[row] < 0 || seam[row] >= width) ? true : false;
-
-			if(hasLargeDifference)
-				throw new IllegalArgumentException("One or more adjacent entries differ by more than 1");
-			
-			if(entryisOutsideBounds)
-				throw new IllegalArgumentException("An entry within the vertical seam is outside the image bounds");
-		}
+	private void swapDistances(){
+		long[] swap = previousDistances;
+		previousDistances = currentDistances;
+		currentDistances = swap;
 	}
 	
 	/*
-	 * Verifies whether a given horizontal seam is valid
+	 * Returns a color that is the average of the packed RGB colors a and b
 	 */
-	public void validateHorizontalSeam(int[] seam){
-		if(seam.length != width)
-			throw new IllegalArgumentException("Seam length is not equal to the images width");
+	private static int averageColors(int a, int b){
+		int redAverage = (((a >> 16) & 0xFF) + ((b >> 16) & 0xFF)) / 2;
+		int greenAverage = (((a >> 8) & 0xFF) + ((b >> 8) & 0xFF)) / 2;
+		int blueAverage = ((a & 0xFF) + (b & 0xFF)) / 2;
 		
-		for(int col = 0; col < width-1; col++){
-			boolean hasLargeDifference = (Math.abs(seam[col] - seam[col+1])) > 1 ? true : false;
-			boolean entryisOutsideBounds = (seam[col] < 0 || seam[col] >= height) ? true : false;
-			
-			if(hasLargeDifference)
-				throw new IllegalArgumentException("One or more adjacent entries differ by more than 1");
-			
-			if(entryisOutsideBounds)
-				throw new IllegalArgumentException("An entry within the horizontal seam is outside the image bounds");
-		}
+		int avgColor = 0xFF000000 | (redAverage << 16) | (greenAverage << 8) | blueAverage;
+		
+		return avgColor;
 	}
 	
 	/*
-	 * Creates the energy graph by assigning each pixel its respective energy value
+	 * Returns the vectorized row kernels if they were compiled and the Vector API can be loaded,
+	 * and the scalar ones otherwise
 	 */
-	private void createEnergyGraph(int height, int width){
-		for(int row = 0; row < height; row++){
-			for(int col = 0; col < width; col++){
-				int energy = ((Double) energy(col, row)).intValue();
-				getPixel(row, col).setEnergy(energy);
-			}
+	static RowKernels loadRowKernels(){
+		if(!Boolean.parseBoolean(System.getProperty("seamcarver.vector", "true")))
+			return new ScalarRowKernels();
+		
+		try{
+			return (RowKernels) Class.forName("VectorRowKernels").getDeclaredConstructor().newInstance();
+		} catch(ReflectiveOperationException | LinkageError e){
+			return new ScalarRowKernels();
 		}
 	}
 	
 	/*
-	 * Creates the horizontal distance graph by assigning each pixel the minimum cost to reach it 
-	 * from any left-most column
+	 * Makes sure the buffers can hold the current image. Buffers that are too small are replaced
+	 * by ones that are at least half as large again, so that a carver reset with gradually larger
+	 * pictures does not reallocate every time
 	 */
-	private void createXDistanceGraph(int height, int width){
-		// Initially assigns each pixel an arbitrary distance value
-		for(int col = 1; col < width; col++){
-			for(int row = 0; row < height; row++){
-				getPixel(row, col).setXDistance(Integer.MAX_VALUE);
-			}
+	private void createPixelGraph(){
+		this.stride = columns;
+		
+		int size = columns * rows;
+		
+		if(pixels == null || pixels.length < size){
+			int capacity = grow((pixels == null) ? 0 : pixels.length, size);
+			this.pixels = new int[capacity];
+			this.energyGraph = new int[capacity];
+			this.parentGraph = new byte[capacity];
 		}
 		
-		// Loop through the entire image
-		for(int c = 0; c < width-1; c++){
-			for(int r = 0; r < height; r++){
-				// If we're on the leftmost column, their distance from a starting point 0 is
-				// unchanged from their initial energy
-				if(c == 0){
-					getPixel(r, c).setXDistance(getPixel(r, c).getEnergy());
-				}	
-				
-				// Term used to calculate allowable columns to inspect
-				int sumTerm = -1;
-				
-				// Returns current distance from a leftmost column to the current pixel at (row, column)
-				int currentDist = getPixel(r, c).getXDistance();
-				
-				// Calculates distance to the 3 pixels positioned immediately ahead of it
-				for(int i = 1; i <= 3; i++){
-					
-					// Row of pixel to compare distance to
-					int row = r + (sumTerm++);
-					
-					// If row exceeds image dimension bounds, ignore it
-					if((row < 0) || (row >= height)){
-						continue;
-					} 
-					
-					int newDistance = currentDist + getPixel(row, c+1).getEnergy();
-					int oldDistance = getPixel(row, c+1).getXDistance();
-				
-					// Relax distance if cost/distance to arrive at pixel (row, c+1) is decreased
-					// when reaching it from our current pixel
-					if(newDistance < oldDistance){
-						getPixel(row, c+1).setXDistance(newDistance);
-					}
-				}
-			}
+		int length = Math.max(columns, rows) + 2;
+		
+		if(previousDistances == null || previousDistances.length < length){
+			int capacity = grow((previousDistances == null) ? 0 : previousDistances.length, length);
+			this.previousDistances = new long[capacity];
+			this.currentDistances = new long[capacity];
 		}
 	}
 	
 	/*
-	 * Creates the vertical distance graph by assigning each pixel the minimum cost/distance to reach it 
-	 * from any top-most row
+	 * Returns the length to replace a buffer of the given length with when it must hold at least
+	 * the required number of entries
 	 */
+	private static int grow(int length, int required){
+		return Math.max(required, length + (length >> 1));
+	}
 	
-	private void createYDistanceGraph(int height, int width){
-		// Initially assigns each pixel an arbitrary distance value
-		for(int row = 0; row < height; row++){
-			for(int col = 0; col < width; col++){
-				getPixel(row,col).setYDistance(Integer.MAX_VALUE);
-			}
-		}
+	/*
+	 * Calculates gradient necessary to assign a given pixel an energy value: the sum of the
+	 * squared differences of the red, green and blue components of two packed colors
+	 */
+	static int calculateGradient(int minuend, int subtrahend){
+		int Rdiff = ((minuend >> 16) & 0xFF) - ((subtrahend >> 16) & 0xFF);
+		int Gdiff = ((minuend >> 8) & 0xFF) - ((subtrahend >> 8) & 0xFF);
+		int Bdiff = (minuend & 0xFF) - (subtrahend & 0xFF);
 		
-		// Loop through the entire image
-		for(int r = 0; r < height-1; r++){
-			for(int c = 0; c < width; c++){
-				
-				// If we're on the top-most row, their distance from a starting point 0 is
-				// unchanged from their initial energy
-				if(r == 0){
-					getPixel(r,c).setYDistance(getPixel(r,c).getEnergy());
-				}	
-				
-				// Term used to calculate allowable rows to inspect
-				int sumTerm = -1;
-				int currentDist = getPixel(r,c).getYDistance();
-				
-				// Calculates distance to the 3 pixels positioned immediately ahead of it
-				for(int i = 1; i <= 3; i++){
-					
-					// Column of pixel to compare distance to
-					int col = c + (sumTerm++);
-					
-					// If column exceeds image dimension bounds, ignore it
-					if((col < 0) || (col >= width)){
-						continue;
-					} 
-					
-					int newDistance = currentDist + getPixel(r+1,col).getEnergy();
-					int oldDistance = getPixel(r+1, col).getYDistance();
-				
-					// Relax distance if cost/distance to arrive at pixel (row, c+1) is decreased
-					// when reaching it from our current pixel
-					if(newDistance < oldDistance){
-						getPixel(r+1, col).setYDistance(newDistance);
-					}
-				}
-			}
-		}
+		return Rdiff * Rdiff + Gdiff * Gdiff + Bdiff * Bdiff;
 	}
 	
 	/*
-	 * Returns a color that is the average of colors a and b
+	 * Fork-join task that computes the energy graph for a band of rows, splitting it in half
+	 * until each band is small enough to give every thread several bands to work on
 	 */
-	private Color averageColors(Color a, Color b){
-		int redAverage = (a.getRed() + b.getRed()) / 2;
-		int greenAverage = (a.getGreen() + b.getGreen()) / 2;
-		int blueAverage = (a.getBlue() + b.getBlue()) / 2;
+	private class EnergyBandTask extends RecursiveAction{
+		private static final long serialVersionUID = 1L;
 		
-		Color avgColor = new Color(redAverage, greenAverage, blueAverage);
+		private final int rowFrom;
+		private final int rowTo;
+		private final int width;
 		
-		return avgColor;
+		public EnergyBandTask(int rowFrom, int rowTo, int width){
+			this.rowFrom = rowFrom;
+			this.rowTo = rowTo;
+			this.width = width;
+		}
+		
+		@Override
+		protected void compute(){
+			int bandHeight = Math.max(1, rows / (pool.getParallelism() * 4));
+			
+			if(rowTo - rowFrom <= bandHeight){
+				createEnergyRows(rowFrom, rowTo, width);
+			} else {
+				int middle = (rowFrom + rowTo) >>> 1;
+				invokeAll(new EnergyBandTask(rowFrom, middle, width), new EnergyBandTask(middle, rowTo, width));
+			}
+		}
 	}
 	
 	/*
-	 * Fills 2D pixel array (with new dimensions) with new instances of Pixels to initially create
-	 * or re-create a pixel graph after a seam removal
+	 * Fork-join task that computes the distance graph as a wavefront. Each row only depends on
+	 * the previous one, so its cells are split into one chunk per thread and relaxed in parallel,
+	 * and all chunks are joined before moving on to the next row
 	 */
-	private void createPixelGraph(){
-		for(int h = 0; h < height; h++){
-			for(int w = 0; w < width; w++){
-				pixelGraph[h][w] = new Pixel();
+	private class DistanceWavefrontTask extends RecursiveAction{
+		private static final long serialVersionUID = 1L;
+		
+		private final int height;
+		private final int width;
+		
+		public DistanceWavefrontTask(int height, int width){
+			this.height = height;
+			this.width = width;
+		}
+		
+		@Override
+		protected void compute(){
+			int chunks = pool.getParallelism();
+			DistanceChunkTask[] tasks = new DistanceChunkTask[chunks];
+			
+			for(int row = 0; row < height; row++){
+				for(int i = 0; i < chunks; i++){
+					tasks[i] = new DistanceChunkTask(row, width * i / chunks, width * (i+1) / chunks);
+				}
+				invokeAll(tasks);
+				swapDistances();
 			}
 		}
 	}
 	
 	/*
-	 * Calculates gradient necessary to assign a given pixel an energy value
+	 * Fork-join task that relaxes one chunk of a row of the distance graph
 	 */
-	private int calculateGradient(Color minuend, Color subtrahend){
-		int Rdiff = minuend.getRed() - subtrahend.getRed();
-		int Gdiff = minuend.getGreen() - subtrahend.getGreen();
-		int Bdiff = minuend.getBlue() - subtrahend.getBlue();
+	private class DistanceChunkTask extends RecursiveAction{
+		private static final long serialVersionUID = 1L;
+		
+		private final int row;
+		private final int from;
+		private final int to;
+		
+		public DistanceChunkTask(int row, int from, int to){
+			this.row = row;
+			this.from = from;
+			this.to = to;
+		}
 		
-		return ((Double) ((Math.pow(Rdiff, 2)) + (Math.pow(Gdiff, 2)) + (Math.pow(Bdiff, 2)))).intValue();
+		@Override
+		protected void compute(){
+			relaxDistances(row, from, to);
+		}
 	}
 	
 	/*
-	 * Inner private class used to store pixel-related information such as a 
-	 * given pixels energy, horizontal distance, and vertical distance
+	 * One level of the energy pyramid used by coarse-to-fine seam searches
 	 */
-	private class Pixel{
-		private int energy;
-		private int YDistance;
-		private int XDistance;
-			
-		/*
-		 * Sets the energy of this pixel
-		 */
-		public void setEnergy(int energy){
-			this.energy = energy;
+	private static class PyramidLevel{
+		private final int[] energies;
+		private final int stride;
+		private int columns;
+		private final int rows;
+		
+		// Column of each row that the last seam removal went through, reused between removals
+		private final int[] seam;
+		
+		public PyramidLevel(int[] energies, int stride, int columns, int rows){
+			this.energies = energies;
+			this.stride = stride;
+			this.columns = columns;
+			this.rows = rows;
+			this.seam = new int[rows];
 		}
 		
 		/*
-		 * Sets the minimum vertical (Y) distance of this pixel from a top-most pixel
+		 * Returns the next coarser level, each energy of which is the mean of a 2x2 block of this level
 		 */
-		public void setYDistance(int dist){
-			this.YDistance = dist;
+		public PyramidLevel halve(){
+			int halfColumns = columns / 2;
+			int halfRows = rows / 2;
+			PyramidLevel half = new PyramidLevel(new int[halfColumns * halfRows], halfColumns, halfColumns, halfRows);
+			
+			for(int row = 0; row < halfRows; row++){
+				half.average(energies, stride, row, 0, halfColumns-1);
+			}
+			return half;
 		}
 		
 		/*
-		 * Sets the minimum horizontal (X) distance of this pixel from a left-most pixel
+		 * Sets the energies from column from to column to (inclusive) of the given row of this
+		 * level to the means of the 2x2 blocks of the level below it under them
 		 */
-		public void setXDistance(int dist){
-			this.XDistance = dist;
+		public void average(int[] lower, int lowerStride, int row, int from, int to){
+			int top = 2 * row * lowerStride;
+			int bottom = top + lowerStride;
+			int i = row * stride + from;
+			
+			for(int col = from; col <= to; col++, i++){
+				long sum = (long) lower[top + 2*col] + lower[top + 2*col + 1]
+						+ lower[bottom + 2*col] + lower[bottom + 2*col + 1];
+				energies[i] = (int) (sum >> 2);
+			}
 		}
 		
 		/*
-		 * Returns energy assigned to this pixel
+		 * Removes the given column from each row, by shifting the energies right of it left by one
 		 */
-		public int getEnergy(){
-			return this.energy;
+		public void removeColumns(int[] seam){
+			for(int row = 0; row < rows; row++){
+				int col = seam[row];
+				System.arraycopy(energies, row * stride + col + 1, energies, row * stride + col, columns-1-col);
+			}
+			columns--;
 		}
 		
 		/*
-		 * Returns the minimum vertical (Y) distance of this pixel from any top-most pixel
+		 * Returns the energy at the given column and row of this level
 		 */
-		public int getYDistance(){
-			return this.YDistance;
+		public int energy(int col, int row){
+			return energies[row * stride + col];
 		}
+	}
+	
+	/*
+	 * Removes seams in alternating directions until the picture is a single row or column. Before
+	 * each removal, the seam in the other direction is found in between two searches for the
+	 * removed one, so the second search is answered from the cache while the buffers are in the
+	 * other orientation. Every seam is checked against one a fresh carver finds
+	 */
+	private static void checkFindOrder(Picture picture){
+		SeamCarver carver = new SeamCarver(picture);
 		
-		/*
-		 * Returns the minimum horizontal (X) distance of this pixel from any left-most pixel
-		 */
-		public int getXDistance(){
-			return this.XDistance;
+		for(boolean horizontal = true; carver.width() > 1 && carver.height() > 1; horizontal = !horizontal){
+			int[] seam = horizontal ? carver.findHorizontalSeam() : carver.findVerticalSeam();
+			int[] other = horizontal ? carver.findVerticalSeam() : carver.findHorizontalSeam();
+			int[] cached = horizontal ? carver.findHorizontalSeam() : carver.findVerticalSeam();
+			
+			SeamCarver fresh = new SeamCarver(carver.picture());
+			
+			if(!Arrays.equals(seam, cached))
+				throw new IllegalStateException("Cached seam differs from the seam first found");
+			
+			if(!Arrays.equals(seam, horizontal ? fresh.findHorizontalSeam() : fresh.findVerticalSeam()))
+				throw new IllegalStateException("Seam differs from the seam a fresh carver finds");
+			
+			if(!Arrays.equals(other, horizontal ? fresh.findVerticalSeam() : fresh.findHorizontalSeam()))
+				throw new IllegalStateException("Seam differs from the seam a fresh carver finds");
+			
+			if(horizontal)
+				carver.removeHorizontalSeam(cached);
+			else
+				carver.removeVerticalSeam(cached);
 		}
 	}
 	
 	/*
-	 * Unit test
+	 * Checks that a pooled carver handed back with other settings finds the same seams as a new
+	 * carver when it is acquired again
+	 */
+	private static void checkPoolReset(Picture picture){
+		CarverPool pool = new CarverPool(1);
+		SeamCarver carver = pool.acquire(picture);
+		
+		carver.setEnergyFunction(new EntropyEnergy());
+		carver.setCostMode(CostMode.FORWARD);
+		carver.setIncrementalEnergy(false);
+		carver.removeVerticalSeam(carver.findVerticalSeam());
+		pool.release(carver);
+		
+		carver = pool.acquire(picture);
+		SeamCarver fresh = new SeamCarver(picture);
+		
+		if(!Arrays.equals(carver.findVerticalSeam(), fresh.findVerticalSeam())
+				|| !Arrays.equals(carver.findHorizontalSeam(), fresh.findHorizontalSeam()))
+			throw new IllegalStateException("Pooled carver finds other seams than a new carver");
+	}
+	
+	/*
+	 * Unit test. Run with "check" and optionally a picture to check seam searches instead of
+	 * showing a carved picture
 	 */
 	public static void main(String[] args){
+		if(args.length > 0 && args[0].equals("check")){
+			Picture picture = new Picture((args.length > 1) ? args[1] : "6x5.png");
+			checkFindOrder(picture);
+			checkPoolReset(picture);
+			System.out.println("OK");
+			return;
+		}
+		
 		Picture p = new Picture("chameleon.png");
 		SeamCarver test = new SeamCarver(p);
 		
-		for(int i = 0; i < 200; i++){
-			int[] seam = test.findVerticalSeam();
-			test.removeVerticalSeam(seam);
-		}
+		test.carveVertical(200);
 		
 		test.picture().show();
 	}
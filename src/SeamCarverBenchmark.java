@@ -0,0 +1,797 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/*
+ * Micro-benchmarks for SeamCarver. Run with the name of a benchmark, e.g.
+ *
+ *   java SeamCarverBenchmark wavefront [threads]
+ *   java SeamCarverBenchmark approximate [image]
+ *   java SeamCarverBenchmark pyramid [image] [band width] [scale]
+ *   java SeamCarverBenchmark raster [image] [scale]
+ *   java SeamCarverBenchmark pool [image] [seams]
+ *   java SeamCarverBenchmark energy [width] [height]
+ *   java SeamCarverBenchmark kernels [width] [height]
+ *   java SeamCarverBenchmark functions [image]
+ *   java SeamCarverBenchmark forward [image] [scale]
+ *   java SeamCarverBenchmark seammap [image]
+ *   java SeamCarverBenchmark cache [image] [scale]
+ *   java SeamCarverBenchmark carvecache [image] [requests] [threads]
+ *   java SeamCarverBenchmark server [image] [clients] [requests per client]
+ *
+ * Timings are the best of several runs after a warm-up, to keep JIT compilation out of the numbers
+ */
+public class SeamCarverBenchmark {
+	private static final int WARMUP_RUNS = 3;
+	private static final int MEASURED_RUNS = 5;
+	
+	/*
+	 * Compares serial and parallel distance graph computation across image widths, and reports
+	 * the narrowest width at which the parallel wavefront starts to win
+	 */
+	private static void wavefront(int threads){
+		int height = 512;
+		int seams = 10;
+		int crossover = -1;
+		
+		System.out.printf("Wavefront DP, %d threads, height %d, %d seams per run%n", threads, height, seams);
+		System.out.printf("%8s %12s %12s%n", "width", "serial ms", "parallel ms");
+		
+		for(int width = 256; width <= 16384; width *= 2){
+			Picture picture = randomPicture(width, height, width);
+			double serial = time(picture, 1, Integer.MAX_VALUE, seams);
+			double parallel = time(picture, threads, 1, seams);
+			
+			if(crossover < 0 && parallel < serial)
+				crossover = width;
+			
+			System.out.printf("%8d %12.2f %12.2f%n", width, serial, parallel);
+		}
+		
+		if(crossover < 0)
+			System.out.println("The parallel wavefront did not win at any measured width");
+		else
+			System.out.println("Parallel wavefront wins from width " + crossover);
+	}
+	
+	/*
+	 * Compares approximate carving at several seams-per-pass settings with exact carving, reporting
+	 * the speedup and the quality loss as the ratio of the total energy removed
+	 */
+	private static void approximate(Picture picture){
+		int seams = picture.width() / 4;
+		
+		System.out.printf("Approximate carving, %d-by-%d picture, %d vertical seams%n", picture.width(), picture.height(), seams);
+		System.out.printf("%14s %10s %16s %14s%n", "seams per pass", "ms", "removed energy", "energy ratio");
+		
+		long exactEnergy = 0;
+		
+		for(int seamsPerPass : new int[] {0, 1, 2, 4, 8, 16, 32}){
+			long best = Long.MAX_VALUE;
+			long energy = 0;
+			
+			for(int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++){
+				SeamCarver carver = new SeamCarver(picture);
+				
+				long start = System.nanoTime();
+				if(seamsPerPass == 0)
+					carver.carveVertical(seams);
+				else
+					carver.carveVerticalApproximate(seams, seamsPerPass);
+				long elapsed = System.nanoTime() - start;
+				
+				if(run >= WARMUP_RUNS)
+					best = Math.min(best, elapsed);
+				energy = carver.removedEnergy();
+			}
+			
+			if(seamsPerPass == 0)
+				exactEnergy = energy;
+			
+			System.out.printf("%14s %10.1f %16d %14.3f%n", (seamsPerPass == 0) ? "exact" : String.valueOf(seamsPerPass),
+					best / 1e6, energy, (double) energy / exactEnergy);
+		}
+	}
+	
+	/*
+	 * Compares coarse-to-fine seam search with the exact search, timing both over a sequence of
+	 * removals and reporting how much the costs of the coarse-to-fine seams regress. The
+	 * coarse-to-fine timings include rebuilding the energy pyramid, a full pass over the energy
+	 * graph, once every band width removals, and the exact timings include no such pass
+	 */
+	private static void pyramid(Picture picture, int bandWidth){
+		int seams = picture.width() / 10;
+		
+		System.out.printf("Coarse-to-fine search, %d-by-%d picture, band width %d, %d vertical seams%n",
+				picture.width(), picture.height(), bandWidth, seams);
+		
+		double[] best = {Double.MAX_VALUE, Double.MAX_VALUE};
+		
+		for(int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++){
+			for(int mode = 0; mode < 2; mode++){
+				SeamCarver carver = new SeamCarver(picture);
+				
+				long start = System.nanoTime();
+				for(int i = 0; i < seams; i++){
+					int[] seam = (mode == 0) ? carver.findVerticalSeam() : carver.findVerticalSeamCoarseToFine(bandWidth);
+					carver.removeVerticalSeam(seam);
+				}
+				double elapsed = (System.nanoTime() - start) / 1e6;
+				
+				if(run >= WARMUP_RUNS)
+					best[mode] = Math.min(best[mode], elapsed);
+			}
+		}
+		
+		System.out.printf("exact:          %10.1f ms%n", best[0]);
+		System.out.printf("coarse-to-fine: %10.1f ms%n", best[1]);
+		
+		// Follow the exact seams, comparing the cost of both searches on every intermediate image
+		SeamCarver carver = new SeamCarver(picture);
+		int identical = 0;
+		double totalRatio = 0;
+		double worstRatio = 0;
+		
+		for(int i = 0; i < seams; i++){
+			int[] exact = carver.findVerticalSeam();
+			int[] coarse = carver.findVerticalSeamCoarseToFine(bandWidth);
+			double ratio = (double) seamCost(carver, coarse) / Math.max(seamCost(carver, exact), 1);
+			
+			if(java.util.Arrays.equals(exact, coarse))
+				identical++;
+			
+			totalRatio += ratio;
+			worstRatio = Math.max(worstRatio, ratio);
+			carver.removeVerticalSeam(exact);
+		}
+		
+		System.out.printf("seam cost vs exact: mean %.3f, worst %.3f, identical seams %d of %d%n",
+				totalRatio / seams, worstRatio, identical, seams);
+	}
+	
+	/*
+	 * Compares loading and saving the picture as a PNG file and as a raster file
+	 */
+	private static void raster(Picture picture) throws IOException{
+		File png = File.createTempFile("benchmark", ".png");
+		File raster = File.createTempFile("benchmark", "." + RasterFile.EXTENSION);
+		
+		System.out.printf("Load and save, %d-by-%d picture%n", picture.width(), picture.height());
+		System.out.printf("%8s %10s %10s %12s%n", "format", "save ms", "load ms", "file bytes");
+		
+		try{
+			for(File file : new File[] {png, raster}){
+				double save = Double.MAX_VALUE;
+				double load = Double.MAX_VALUE;
+				
+				for(int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++){
+					long start = System.nanoTime();
+					picture.save(file);
+					long saved = System.nanoTime();
+					Picture loaded = new Picture(file);
+					long end = System.nanoTime();
+					
+					if(!loaded.equals(picture))
+						throw new IllegalStateException("Picture changed by a save and load through " + file);
+					
+					if(run >= WARMUP_RUNS){
+						save = Math.min(save, (saved - start) / 1e6);
+						load = Math.min(load, (end - saved) / 1e6);
+					}
+				}
+				
+				String format = file.getName().substring(file.getName().lastIndexOf('.') + 1);
+				System.out.printf("%8s %10.1f %10.1f %12d%n", format, save, load, file.length());
+			}
+		} finally {
+			png.delete();
+			raster.delete();
+		}
+	}
+	
+	/*
+	 * Compares carving each request with a new carver against carving it with a carver from a
+	 * pool, reporting the time and the bytes allocated per request
+	 */
+	private static void pool(Picture picture, int seams){
+		int requests = 20;
+		long outputBytes = 4L * (picture.width() - seams) * picture.height();
+		
+		System.out.printf("Carver reuse, %d-by-%d picture, %d vertical seams per request%n",
+				picture.width(), picture.height(), seams);
+		System.out.printf("%8s %14s %18s%n", "carver", "ms/request", "bytes/request");
+		
+		CarverPool pool = new CarverPool(1);
+		
+		for(int mode = 0; mode < 2; mode++){
+			double best = Double.MAX_VALUE;
+			long allocated = 0;
+			
+			for(int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++){
+				long startBytes = allocatedBytes();
+				long start = System.nanoTime();
+				
+				for(int i = 0; i < requests; i++){
+					if(mode == 0){
+						SeamCarver carver = new SeamCarver(picture);
+						carver.removeVerticalSeams(seams);
+						carver.picture();
+					} else {
+						SeamCarver carver = pool.acquire(picture);
+						carver.removeVerticalSeams(seams);
+						carver.picture();
+						pool.release(carver);
+					}
+				}
+				
+				double elapsed = (System.nanoTime() - start) / 1e6 / requests;
+				
+				if(run >= WARMUP_RUNS){
+					best = Math.min(best, elapsed);
+					allocated = (allocatedBytes() - startBytes) / requests;
+				}
+			}
+			System.out.printf("%8s %14.2f %18d%n", (mode == 0) ? "new" : "pooled", best, allocated);
+		}
+		System.out.printf("The output image takes %d bytes%n", outputBytes);
+	}
+	
+	/*
+	 * Compares the integer energy row kernel with the floating point kernel it replaced, checking
+	 * that both give the same energies and reporting the time and the bytes allocated per pixel
+	 */
+	private static void energy(int width, int height){
+		Picture picture = randomPicture(width, height, 17);
+		int[] pixels = new int[width * height];
+		picture.getPixels(pixels);
+		
+		int[] energies = new int[width * height];
+		int[] expected = new int[width * height];
+		long pixelCount = (long) width * height;
+		
+		System.out.printf("Energy kernel, %d-by-%d picture%n", width, height);
+		System.out.printf("%8s %12s %16s%n", "kernel", "ns/pixel", "bytes/pixel");
+		
+		for(int kernel = 0; kernel < 2; kernel++){
+			double best = Double.MAX_VALUE;
+			double allocated = 0;
+			
+			for(int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++){
+				long startBytes = allocatedBytes();
+				long start = System.nanoTime();
+				
+				for(int row = 0; row < height; row++){
+					if(kernel == 0){
+						for(int col = 0; col < width; col++){
+							expected[row * width + col] = ((Double) legacyEnergy(pixels, width, height, col, row)).intValue();
+						}
+					} else {
+						SeamCarver.energyRow(pixels, width, width, height, row, 0, width, energies, row * width);
+					}
+				}
+				
+				double elapsed = (double) (System.nanoTime() - start) / pixelCount;
+				
+				if(run >= WARMUP_RUNS){
+					best = Math.min(best, elapsed);
+					allocated = (double) (allocatedBytes() - startBytes - ALLOCATION_OVERHEAD) / pixelCount;
+				}
+			}
+			System.out.printf("%8s %12.2f %16.4f%n", (kernel == 0) ? "double" : "int", best, allocated);
+		}
+		
+		if(!java.util.Arrays.equals(energies, expected))
+			throw new IllegalStateException("Energy kernels disagree");
+		
+		System.out.println("Both kernels give identical energies");
+	}
+	
+	/*
+	 * Compares the scalar row kernels with the ones SeamCarver selected, which are vectorized when
+	 * the Vector API is available, reporting pixels per nanosecond for each and checking that both
+	 * give identical energies, distances and parents
+	 */
+	private static void kernels(int width, int height){
+		RowKernels[] kernels = {new ScalarRowKernels(), SeamCarver.ROW_KERNELS};
+		int[] pixels = new int[width * height];
+		randomPicture(width, height, 23).getPixels(pixels);
+		
+		// Energies are drawn from a few values so that many distances tie
+		Random random = new Random(29);
+		int[] energies = new int[width * height];
+		for(int i = 0; i < energies.length; i++){
+			energies[i] = random.nextInt(4);
+		}
+		
+		int[][] energyResults = new int[2][width * height];
+		byte[][] parentResults = new byte[2][width * height];
+		long[][] distanceResults = new long[2][];
+		long pixelCount = (long) width * height;
+		
+		System.out.printf("Row kernels, %d-by-%d picture%n", width, height);
+		System.out.printf("%20s %16s %16s%n", "kernels", "energy px/ns", "distance px/ns");
+		
+		for(int k = 0; k < kernels.length; k++){
+			RowKernels kernel = kernels[k];
+			double bestEnergy = Double.MAX_VALUE;
+			double bestDistance = Double.MAX_VALUE;
+			long[] previous = new long[width + 2];
+			long[] current = new long[width + 2];
+			
+			for(int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++){
+				long start = System.nanoTime();
+				for(int row = 0; row < height; row++){
+					int top = ((row == 0) ? height-1 : row-1) * width;
+					int bottom = ((row == height-1) ? 0 : row+1) * width;
+					kernel.energyInterior(pixels, row * width, top, bottom, 1, width-1, energyResults[k], row * width);
+				}
+				long energyTime = System.nanoTime() - start;
+				
+				previous[0] = current[0] = previous[width+1] = current[width+1] = Long.MAX_VALUE;
+				for(int c = 0; c < width; c++){
+					previous[c+1] = energies[c];
+				}
+				
+				start = System.nanoTime();
+				for(int row = 1; row < height; row++){
+					kernel.relax(previous, current, energies, parentResults[k], row * width, 0, width);
+					long[] swap = previous;
+					previous = current;
+					current = swap;
+				}
+				long distanceTime = System.nanoTime() - start;
+				
+				if(run >= WARMUP_RUNS){
+					bestEnergy = Math.min(bestEnergy, energyTime);
+					bestDistance = Math.min(bestDistance, distanceTime);
+				}
+			}
+			distanceResults[k] = previous;
+			
+			System.out.printf("%20s %16.3f %16.3f%n", kernel.getClass().getName(), pixelCount / bestEnergy, pixelCount / bestDistance);
+		}
+		
+		if(!java.util.Arrays.equals(energyResults[0], energyResults[1]) || !java.util.Arrays.equals(parentResults[0], parentResults[1])
+				|| !java.util.Arrays.equals(distanceResults[0], distanceResults[1]))
+			throw new IllegalStateException("Row kernels disagree");
+		
+		System.out.println("Both kernels give identical results");
+	}
+	
+	/*
+	 * Compares the energy functions, timing a full energy graph build and the removal of a tenth
+	 * of the columns with each
+	 */
+	private static void functions(Picture picture){
+		EnergyFunction[] functions = {new DualGradientEnergy(), new LuminanceSobelEnergy(), new EntropyEnergy()};
+		int seams = picture.width() / 10;
+		long pixelCount = (long) picture.width() * picture.height();
+		
+		System.out.printf("Energy functions, %d-by-%d picture, %d vertical seams%n", picture.width(), picture.height(), seams);
+		System.out.printf("%22s %8s %16s %12s%n", "function", "radius", "build ns/pixel", "carve ms");
+		
+		for(EnergyFunction function : functions){
+			double bestBuild = Double.MAX_VALUE;
+			double bestCarve = Double.MAX_VALUE;
+			
+			for(int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++){
+				SeamCarver carver = new SeamCarver(picture);
+				
+				long start = System.nanoTime();
+				carver.setEnergyFunction(function);
+				long built = System.nanoTime();
+				carver.removeVerticalSeams(seams);
+				long end = System.nanoTime();
+				
+				if(run >= WARMUP_RUNS){
+					bestBuild = Math.min(bestBuild, (double) (built - start) / pixelCount);
+					bestCarve = Math.min(bestCarve, (end - built) / 1e6);
+				}
+			}
+			System.out.printf("%22s %8d %16.2f %12.1f%n", function.getClass().getName(), function.radius(), bestBuild, bestCarve);
+		}
+	}
+	
+	/*
+	 * Compares backward and forward seam costs, timing the search alone and the removal of a tenth
+	 * of the columns with each
+	 */
+	private static void forward(Picture picture){
+		SeamCarver.CostMode[] modes = SeamCarver.CostMode.values();
+		int seams = picture.width() / 10;
+		double[] bestFind = new double[modes.length];
+		double[] bestCarve = new double[modes.length];
+		
+		System.out.printf("Cost modes, %d-by-%d picture, %d vertical seams%n", picture.width(), picture.height(), seams);
+		System.out.printf("%10s %12s %12s %10s%n", "mode", "search ms", "carve ms", "overhead");
+		
+		for(int m = 0; m < modes.length; m++){
+			bestFind[m] = bestCarve[m] = Double.MAX_VALUE;
+			
+			for(int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++){
+				SeamCarver carver = new SeamCarver(picture);
+				carver.setCostMode(modes[m]);
+				
+				long start = System.nanoTime();
+				carver.findVerticalSeam();
+				long found = System.nanoTime();
+				carver.removeVerticalSeams(seams);
+				long end = System.nanoTime();
+				
+				if(run >= WARMUP_RUNS){
+					bestFind[m] = Math.min(bestFind[m], (found - start) / 1e6);
+					bestCarve[m] = Math.min(bestCarve[m], (end - found) / 1e6);
+				}
+			}
+			
+			double overhead = 100 * (bestCarve[m] / bestCarve[0] - 1);
+			System.out.printf("%10s %12.2f %12.1f %9.1f%%%n", modes[m], bestFind[m], bestCarve[m], overhead);
+		}
+	}
+	
+	/*
+	 * Times computing a seam map once, then compares retargeting to several widths from it with
+	 * carving each width from the full picture
+	 */
+	private static void seamMap(Picture picture){
+		long start = System.nanoTime();
+		SeamMap map = SeamMap.compute(picture);
+		double compute = (System.nanoTime() - start) / 1e6;
+		
+		System.out.printf("Seam map, %d-by-%d picture, computed in %.0f ms%n", picture.width(), picture.height(), compute);
+		System.out.printf("%8s %12s %14s%n", "width", "carve ms", "retarget ms");
+		
+		for(int percent = 90; percent >= 30; percent -= 20){
+			int targetWidth = picture.width() * percent / 100;
+			double bestCarve = Double.MAX_VALUE;
+			double bestRetarget = Double.MAX_VALUE;
+			
+			for(int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++){
+				long carveStart = System.nanoTime();
+				SeamCarver carver = new SeamCarver(picture);
+				carver.removeVerticalSeams(picture.width() - targetWidth);
+				carver.picture();
+				long retargetStart = System.nanoTime();
+				map.retarget(picture, targetWidth);
+				long end = System.nanoTime();
+				
+				if(run >= WARMUP_RUNS){
+					bestCarve = Math.min(bestCarve, (retargetStart - carveStart) / 1e6);
+					bestRetarget = Math.min(bestRetarget, (end - retargetStart) / 1e6);
+				}
+			}
+			System.out.printf("%8d %12.1f %14.2f%n", targetWidth, bestCarve, bestRetarget);
+		}
+	}
+	
+	/*
+	 * Compares building a carver and a seam map with an empty cache, which computes and stores
+	 * them, and with a warm cache, which reads them back
+	 */
+	private static void cache(Picture picture) throws IOException{
+		File directory = Files.createTempDirectory("seamcache").toFile();
+		
+		try{
+			SeamCache cache = new SeamCache(directory, Long.MAX_VALUE);
+			
+			long start = System.nanoTime();
+			SeamCache.key(picture);
+			long keyed = System.nanoTime();
+			cache.carver(picture);
+			long coldCarver = System.nanoTime();
+			cache.carver(picture);
+			long warmCarver = System.nanoTime();
+			cache.seamMap(picture);
+			long coldMap = System.nanoTime();
+			cache.seamMap(picture);
+			long warmMap = System.nanoTime();
+			
+			System.out.printf("Seam cache, %d-by-%d picture, %d bytes cached%n", picture.width(), picture.height(), cache.size());
+			System.out.printf("%12s %10.1f ms%n", "key", (keyed - start) / 1e6);
+			System.out.printf("%12s %10.1f ms cold %10.1f ms warm%n", "carver", (coldCarver - keyed) / 1e6, (warmCarver - coldCarver) / 1e6);
+			System.out.printf("%12s %10.1f ms cold %10.1f ms warm%n", "seam map", (coldMap - warmCarver) / 1e6, (warmMap - coldMap) / 1e6);
+		} finally{
+			for(File file : directory.listFiles()){
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+	
+	/*
+	 * Serves skewed traffic, most requests asking for a few hot sizes of one picture, from several
+	 * threads, carving every request and then going through a carve cache
+	 */
+	private static void carveCache(final Picture picture, int requests, int threads) throws InterruptedException{
+		// Widths picked with a Zipf-like skew, half the requests asking for the hottest one
+		final int[] widths = new int[requests];
+		Random random = new Random(42);
+		
+		for(int i = 0; i < requests; i++){
+			int rank = 0;
+			
+			while(rank < 7 && random.nextBoolean()){
+				rank++;
+			}
+			widths[i] = picture.width() - 10 * (rank + 1);
+		}
+		
+		final String key = SeamCache.key(picture);
+		final CarveCache cache = new CarveCache(4L * picture.width() * picture.height());
+		
+		System.out.printf("Carve cache, %d-by-%d picture, %d requests on %d threads%n", picture.width(), picture.height(), requests, threads);
+		
+		for(int pass = 0; pass < 2; pass++){
+			final boolean cached = (pass == 1);
+			final AtomicInteger next = new AtomicInteger();
+			Thread[] workers = new Thread[threads];
+			
+			for(int t = 0; t < threads; t++){
+				workers[t] = new Thread(){
+					@Override
+					public void run(){
+						for(int i = next.getAndIncrement(); i < widths.length; i = next.getAndIncrement()){
+							if(cached){
+								cache.carve(key, picture, widths[i], picture.height(), new DualGradientEnergy(), SeamCarver.CostMode.BACKWARD);
+							} else {
+								SeamCarver carver = new SeamCarver(picture);
+								carver.resize(widths[i], picture.height());
+								carver.picture();
+							}
+						}
+					}
+				};
+			}
+			
+			long start = System.nanoTime();
+			for(Thread worker : workers){
+				worker.start();
+			}
+			for(Thread worker : workers){
+				worker.join();
+			}
+			double elapsed = (System.nanoTime() - start) / 1e6;
+			
+			System.out.printf("%10s %10.0f ms %10.1f requests/s%n", cached ? "cached" : "uncached", elapsed, requests / (elapsed / 1000));
+		}
+		System.out.printf("hits %d, misses %d, coalesced %d, evictions %d, %d results of %d pixels%n",
+				cache.hits(), cache.misses(), cache.coalesced(), cache.evictions(), cache.size(), cache.pixels());
+	}
+	
+	/*
+	 * Starts a carve server on a free local port with one carving thread per core and a short
+	 * queue, floods it with more concurrent clients than that, and reports how many requests
+	 * were carved and how many were turned away, followed by the server's own metrics
+	 */
+	private static void server(File image, int clients, final int requestsPerClient) throws IOException, InterruptedException{
+		final byte[] body = Files.readAllBytes(image.toPath());
+		Picture picture = new Picture(image);
+		int threads = Runtime.getRuntime().availableProcessors();
+		final CarveServer server = new CarveServer(0, threads, threads);
+		final URL url = new URL("http://localhost:" + server.port() + "/carve?width=" + (picture.width() - 20) + "&height=" + picture.height());
+		final AtomicIntegerArray statuses = new AtomicIntegerArray(600);
+		
+		try{
+			Thread[] workers = new Thread[clients];
+			
+			for(int c = 0; c < clients; c++){
+				workers[c] = new Thread(){
+					@Override
+					public void run(){
+						for(int i = 0; i < requestsPerClient; i++){
+							try{
+								HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+								connection.setRequestMethod("POST");
+								connection.setDoOutput(true);
+								connection.getOutputStream().write(body);
+								
+								int status = connection.getResponseCode();
+								InputStream in = (status < 400) ? connection.getInputStream() : connection.getErrorStream();
+								
+								while(in != null && in.read() >= 0){
+								}
+								statuses.incrementAndGet(status);
+							} catch(IOException e){
+								statuses.incrementAndGet(0);
+							}
+						}
+					}
+				};
+			}
+			
+			long start = System.nanoTime();
+			for(Thread worker : workers){
+				worker.start();
+			}
+			for(Thread worker : workers){
+				worker.join();
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			
+			System.out.printf("Carve server, %d clients sending %d requests each, %d carving threads, %.2f s%n", clients, requestsPerClient, threads, seconds);
+			
+			for(int status = 0; status < statuses.length(); status++){
+				if(statuses.get(status) > 0)
+					System.out.printf("%8s %6d%n", (status == 0) ? "error" : String.valueOf(status), statuses.get(status));
+			}
+			System.out.print(server.metrics());
+		} finally{
+			server.close();
+		}
+	}
+	
+	/*
+	 * The energy function as it was before the integer row kernel, for comparison
+	 */
+	private static double legacyEnergy(int[] pixels, int width, int height, int col, int row){
+		int right = pixels[row * width + ((col + 1 > width-1) ? 0 : col + 1)];
+		int left = pixels[row * width + ((col - 1 < 0) ? width-1 : col - 1)];
+		int top = pixels[((row - 1 < 0) ? height-1 : row - 1) * width + col];
+		int bottom = pixels[((row + 1 > height-1) ? 0 : row + 1) * width + col];
+		
+		return legacyGradient(right, left) + legacyGradient(top, bottom);
+	}
+	
+	private static int legacyGradient(int minuend, int subtrahend){
+		int Rdiff = ((minuend >> 16) & 0xFF) - ((subtrahend >> 16) & 0xFF);
+		int Gdiff = ((minuend >> 8) & 0xFF) - ((subtrahend >> 8) & 0xFF);
+		int Bdiff = (minuend & 0xFF) - (subtrahend & 0xFF);
+		
+		return ((Double) ((Math.pow(Rdiff, 2)) + (Math.pow(Gdiff, 2)) + (Math.pow(Bdiff, 2)))).intValue();
+	}
+	
+	/*
+	 * Returns the number of bytes allocated so far by the current thread
+	 */
+	private static long allocatedBytes(){
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+	
+	// Bytes allocated by measuring the allocated bytes itself, subtracted from measurements
+	private static final long ALLOCATION_OVERHEAD = allocationOverhead();
+	
+	/*
+	 * Returns the smallest number of bytes seen allocated between two back to back calls to
+	 * allocatedBytes
+	 */
+	private static long allocationOverhead(){
+		long overhead = Long.MAX_VALUE;
+		
+		for(int i = 0; i < 1000; i++){
+			long start = allocatedBytes();
+			overhead = Math.min(overhead, allocatedBytes() - start);
+		}
+		return overhead;
+	}
+	
+	/*
+	 * Returns the total energy of the pixels on the given vertical seam
+	 */
+	private static long seamCost(SeamCarver carver, int[] seam){
+		long cost = 0;
+		
+		for(int row = 0; row < seam.length; row++){
+			cost += (long) carver.energy(seam[row], row);
+		}
+		return cost;
+	}
+	
+	/*
+	 * Returns a copy of the picture enlarged by the given integer factor
+	 */
+	private static Picture scale(Picture picture, int factor){
+		Picture scaled = new Picture(picture.width() * factor, picture.height() * factor);
+		
+		for(int row = 0; row < scaled.height(); row++){
+			for(int col = 0; col < scaled.width(); col++){
+				scaled.setRGB(col, row, picture.getRGB(col / factor, row / factor));
+			}
+		}
+		return scaled;
+	}
+	
+	/*
+	 * Returns the best time in milliseconds to find and remove the given number of vertical seams
+	 */
+	private static double time(Picture picture, int threads, int parallelMinLength, int seams){
+		long best = Long.MAX_VALUE;
+		
+		for(int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++){
+			long elapsed;
+			
+			try(SeamCarver carver = new SeamCarver(picture, threads)){
+				carver.setParallelDistanceMinLength(parallelMinLength);
+				
+				long start = System.nanoTime();
+				for(int i = 0; i < seams; i++){
+					carver.removeVerticalSeam(carver.findVerticalSeam());
+				}
+				elapsed = System.nanoTime() - start;
+			}
+			
+			if(run >= WARMUP_RUNS)
+				best = Math.min(best, elapsed);
+		}
+		return best / 1e6;
+	}
+	
+	/*
+	 * Creates a picture filled with random colors
+	 */
+	private static Picture randomPicture(int width, int height, long seed){
+		Random random = new Random(seed);
+		int[] pixels = new int[width * height];
+		
+		for(int i = 0; i < pixels.length; i++){
+			pixels[i] = random.nextInt();
+		}
+		
+		Picture picture = new Picture(width, height);
+		picture.setPixels(pixels);
+		return picture;
+	}
+	
+	public static void main(String[] args) throws IOException, InterruptedException{
+		String benchmark = (args.length > 0) ? args[0] : "wavefront";
+		
+		if(benchmark.equals("wavefront")){
+			int threads = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+			wavefront(Math.max(threads, 2));
+		} else if(benchmark.equals("approximate")){
+			approximate(new Picture((args.length > 1) ? args[1] : "chameleon.png"));
+		} else if(benchmark.equals("pyramid")){
+			Picture picture = new Picture((args.length > 1) ? args[1] : "chameleon.png");
+			int bandWidth = (args.length > 2) ? Integer.parseInt(args[2]) : 4;
+			int factor = (args.length > 3) ? Integer.parseInt(args[3]) : 1;
+			pyramid(scale(picture, factor), bandWidth);
+		} else if(benchmark.equals("raster")){
+			Picture picture = new Picture((args.length > 1) ? args[1] : "chameleon.png");
+			int factor = (args.length > 2) ? Integer.parseInt(args[2]) : 1;
+			raster(scale(picture, factor));
+		} else if(benchmark.equals("pool")){
+			Picture picture = new Picture((args.length > 1) ? args[1] : "chameleon.png");
+			int seams = (args.length > 2) ? Integer.parseInt(args[2]) : 50;
+			pool(picture, seams);
+		} else if(benchmark.equals("energy")){
+			int width = (args.length > 1) ? Integer.parseInt(args[1]) : 2048;
+			int height = (args.length > 2) ? Integer.parseInt(args[2]) : 1024;
+			energy(width, height);
+		} else if(benchmark.equals("kernels")){
+			int width = (args.length > 1) ? Integer.parseInt(args[1]) : 2047;
+			int height = (args.length > 2) ? Integer.parseInt(args[2]) : 1024;
+			kernels(width, height);
+		} else if(benchmark.equals("functions")){
+			functions(new Picture((args.length > 1) ? args[1] : "chameleon.png"));
+		} else if(benchmark.equals("forward")){
+			Picture picture = new Picture((args.length > 1) ? args[1] : "chameleon.png");
+			int factor = (args.length > 2) ? Integer.parseInt(args[2]) : 1;
+			forward(scale(picture, factor));
+		} else if(benchmark.equals("seammap")){
+			seamMap(new Picture((args.length > 1) ? args[1] : "chameleon.png"));
+		} else if(benchmark.equals("cache")){
+			Picture picture = new Picture((args.length > 1) ? args[1] : "chameleon.png");
+			int factor = (args.length > 2) ? Integer.parseInt(args[2]) : 1;
+			cache(scale(picture, factor));
+		} else if(benchmark.equals("carvecache")){
+			Picture picture = new Picture((args.length > 1) ? args[1] : "chameleon.png");
+			int requests = (args.length > 2) ? Integer.parseInt(args[2]) : 200;
+			int threads = (args.length > 3) ? Integer.parseInt(args[3]) : 8;
+			carveCache(picture, requests, threads);
+		} else if(benchmark.equals("server")){
+			File image = new File((args.length > 1) ? args[1] : "chameleon.png");
+			int clients = (args.length > 2) ? Integer.parseInt(args[2]) : 16;
+			int requests = (args.length > 3) ? Integer.parseInt(args[3]) : 4;
+			server(image, clients, requests);
+		} else {
+			throw new IllegalArgumentException("Unknown benchmark: " + benchmark);
+		}
+	}
+}
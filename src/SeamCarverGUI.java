@@ -80,13 +80,9 @@ public class SeamCarverGUI extends JFrame implements ActionListener{
 		boolean removeHorizontalSeam = horizontalSeamBtn.isSelected();
 		
 		if(removeVerticalSeam){
-			for(int i = 0; i < seamsCount; i++){
-				seamCarver.removeVerticalSeam(seamCarver.findVerticalSeam());
-			}
+			seamCarver.removeVerticalSeams(seamsCount);
 		} else if(removeHorizontalSeam){
-			for(int i = 0; i < seamsCount; i++){
-				seamCarver.removeHorizontalSeam(seamCarver.findHorizontalSeam());
-			}
+			seamCarver.removeHorizontalSeams(seamsCount);
 		}
 		
 		Picture seamImg = seamCarver.picture();
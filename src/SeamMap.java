@@ -0,0 +1,248 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * The order in which every vertical seam of a picture is removed, precomputed once so that the
+ * picture can then be narrowed to any width without finding seams again. Each pixel is given the
+ * rank of the seam that removes it, from 0 for the first seam to width-2 for the last, and the
+ * pixel left over in each row when the picture is one pixel wide gets the rank width-1. Every row
+ * holds each rank exactly once, so narrowing the picture to w columns keeps the pixels ranked
+ * width-w or above, in their original order, which is a single pass over the picture with no
+ * energy or distance calculations.
+ *
+ * Seam maps are saved in a file next to the picture, with the same 16 byte header as raster files
+ * except for the magic number "SMAP", followed by the ranks as row-major ints
+ */
+public class SeamMap {
+	// Extension added to the picture's file name to name its seam map file
+	public static final String EXTENSION = "seams";
+	
+	private static final byte[] MAGIC = {'S', 'M', 'A', 'P'};
+	private static final int HEADER_BYTES = 16;
+	
+	// Rows read or written at a time when loading and saving
+	private static final int IO_ROWS = 64;
+	
+	private final int width;
+	private final int height;
+	private final int[] ranks;
+	
+	private SeamMap(int width, int height, int[] ranks){
+		this.width = width;
+		this.height = height;
+		this.ranks = ranks;
+	}
+	
+	/*
+	 * Computes the seam map of the given picture with the default energy function and costs
+	 */
+	public static SeamMap compute(Picture picture){
+		return compute(new SeamCarver(picture));
+	}
+	
+	/*
+	 * Computes the seam map of the carver's current image, removing every vertical seam but one
+	 * with the carver's energy function and cost mode. The carver is left one pixel wide
+	 */
+	public static SeamMap compute(SeamCarver carver){
+		int width = carver.width();
+		int height = carver.height();
+		int[] ranks = new int[width * height];
+		
+		// Pixels no seam removes keep the highest rank
+		Arrays.fill(ranks, width-1);
+		
+		List<int[]> seams = carver.carveVertical(width-1);
+		
+		for(int rank = 0; rank < seams.size(); rank++){
+			int[] seam = seams.get(rank);
+			seams.set(rank, null);
+			
+			for(int row = 0; row < height; row++){
+				ranks[row * width + seam[row]] = rank;
+			}
+		}
+		return new SeamMap(width, height, ranks);
+	}
+	
+	/*
+	 * Returns the width of the picture the map was computed for
+	 */
+	public int width(){
+		return width;
+	}
+	
+	/*
+	 * Returns the height of the picture the map was computed for
+	 */
+	public int height(){
+		return height;
+	}
+	
+	/*
+	 * Returns the rank of the seam that removes the pixel at the given column and row
+	 */
+	public int rank(int col, int row){
+		if(col < 0 || col >= width)
+			throw new IndexOutOfBoundsException("Column " + col + " is out of bounds");
+		
+		if(row < 0 || row >= height)
+			throw new IndexOutOfBoundsException("Row " + row + " is out of bounds");
+		
+		return ranks[row * width + col];
+	}
+	
+	/*
+	 * Returns the given picture, which must be the one the map was computed for, narrowed to the
+	 * given width. The result is the same as removing width() - targetWidth vertical seams from it
+	 * with the carver the map was computed with
+	 */
+	public Picture retarget(Picture picture, int targetWidth){
+		if(picture == null)
+			throw new NullPointerException("Null picture given");
+		
+		if(picture.width() != width || picture.height() != height)
+			throw new IllegalArgumentException("Picture is " + picture.width() + "-by-" + picture.height() + " but the seam map is " + width + "-by-" + height);
+		
+		if(targetWidth < 1 || targetWidth > width)
+			throw new IllegalArgumentException("Target width must be between 1 and " + width);
+		
+		Picture retargeted = new Picture(targetWidth, height);
+		int minRank = width - targetWidth;
+		int[] source = new int[width];
+		int[] kept = new int[targetWidth];
+		
+		for(int row = 0; row < height; row++){
+			picture.getRGB(0, row, width, source, 0);
+			int rowStart = row * width;
+			int k = 0;
+			
+			for(int col = 0; col < width; col++){
+				if(ranks[rowStart + col] >= minRank)
+					kept[k++] = source[col];
+			}
+			retargeted.setRGB(0, row, targetWidth, kept, 0);
+		}
+		return retargeted;
+	}
+	
+	/*
+	 * Returns the file the seam map of the given picture file is saved in
+	 */
+	public static File fileFor(File picture){
+		return new File(picture.getPath() + "." + EXTENSION);
+	}
+	
+	/*
+	 * Saves the seam map to the given file, replacing any existing file
+	 */
+	public void save(File file) throws IOException{
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		
+		try(FileChannel channel = raf.getChannel()){
+			ByteOrder order = ByteOrder.nativeOrder();
+			raf.setLength(HEADER_BYTES + 4L * width * height);
+			
+			ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + 4 * IO_ROWS * width).order(order);
+			buffer.put(MAGIC);
+			buffer.put((byte) ((order == ByteOrder.BIG_ENDIAN) ? 0 : 1));
+			buffer.putInt(8, width);
+			buffer.putInt(12, height);
+			buffer.limit(HEADER_BYTES).position(0);
+			
+			long position = 0;
+			position += writeFully(channel, buffer, position);
+			
+			for(int row = 0; row < height; row += IO_ROWS){
+				int count = Math.min(IO_ROWS, height - row) * width;
+				buffer.clear();
+				buffer.asIntBuffer().put(ranks, row * width, count);
+				buffer.limit(4 * count);
+				position += writeFully(channel, buffer, position);
+			}
+		}
+	}
+	
+	/*
+	 * Loads a seam map saved by save. Files whose rows do not each hold every rank from 0 to
+	 * width-1 exactly once are refused with an IOException, like truncated files, so that a
+	 * corrupt file is never used to retarget a picture
+	 */
+	public static SeamMap load(File file) throws IOException{
+		try(FileChannel channel = new RandomAccessFile(file, "r").getChannel()){
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			readFully(channel, header, 0, file);
+			
+			for(int i = 0; i < MAGIC.length; i++){
+				if(header.get(i) != MAGIC[i])
+					throw new IOException("Not a seam map file: " + file);
+			}
+			
+			ByteOrder order = (header.get(4) == 0) ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+			header.order(order);
+			int width = header.getInt(8);
+			int height = header.getInt(12);
+			
+			if(width < 1 || height < 1 || (long) width * height > Integer.MAX_VALUE)
+				throw new IOException("Invalid seam map dimensions: " + file);
+			
+			if(channel.size() < HEADER_BYTES + 4L * width * height)
+				throw new IOException("Truncated seam map file: " + file);
+			
+			int[] ranks = new int[width * height];
+			ByteBuffer buffer = ByteBuffer.allocate(4 * IO_ROWS * width).order(order);
+			long position = HEADER_BYTES;
+			
+			for(int row = 0; row < height; row += IO_ROWS){
+				int count = Math.min(IO_ROWS, height - row) * width;
+				buffer.clear().limit(4 * count);
+				readFully(channel, buffer, position, file);
+				buffer.flip();
+				buffer.asIntBuffer().get(ranks, row * width, count);
+				position += 4L * count;
+			}
+			
+			boolean[] seen = new boolean[width];
+			
+			for(int row = 0; row < height; row++){
+				Arrays.fill(seen, false);
+				
+				for(int i = row * width; i < (row + 1) * width; i++){
+					int rank = ranks[i];
+					
+					if(rank < 0 || rank >= width || seen[rank])
+						throw new IOException("Corrupt seam map file, row " + row + " does not hold every rank once: " + file);
+					seen[rank] = true;
+				}
+			}
+			return new SeamMap(width, height, ranks);
+		}
+	}
+	
+	private static long writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException{
+		long written = 0;
+		
+		while(buffer.hasRemaining()){
+			written += channel.write(buffer, position + written);
+		}
+		return written;
+	}
+	
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position, File file) throws IOException{
+		long read = 0;
+		
+		while(buffer.hasRemaining()){
+			int n = channel.read(buffer, position + read);
+			
+			if(n < 0)
+				throw new IOException("Truncated seam map file: " + file);
+			read += n;
+		}
+	}
+}
@@ -0,0 +1,476 @@
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/*
+ * Removes vertical seams from images too large to hold in memory. The pixels are kept in a
+ * temporary file and processed in horizontal strips of a fixed number of rows, so that peak
+ * memory depends on the strip size and the image width but not on the image height.
+ *
+ * Each seam takes two streaming passes. The first goes down the image a strip at a time,
+ * calculating the strip's energies and relaxing the running distance row, and writes each
+ * pixel's parent offset to a memory-mapped temporary file. The second goes back up a strip at a
+ * time, tracing the seam from the parent offsets and removing it from the strip's rows.
+ *
+ * Seams are found with the same energy function and tie-breaking as SeamCarver, so both remove
+ * the same seams from the same image.
+ *
+ * Raster files and PNG files are read a strip at a time, PNG files through PngRowReader, so that
+ * neither is ever held in memory whole, and saving a carver that has removed no seams turns a PNG
+ * file into a raster file. Other images, like JPEG and interlaced PNG, cannot be decoded from
+ * partway down, so they are decoded whole once. Those too large for the memory left on the heap
+ * are refused with an IOException instead of running the heap out
+ */
+public class StreamingSeamCarver implements Closeable {
+	// Number of rows per strip used when none is given
+	static final int DEFAULT_STRIP_HEIGHT = 256;
+	
+	// Pixels of the current image, as row-major native order ints. Rows keep the width
+	// of the original image, so that removing a seam never moves a row within the file
+	private final File pixelFile;
+	private final FileChannel pixels;
+	
+	// Parent offset (-1, 0 or 1) of every pixel, laid out like the pixels. The file is mapped
+	// one strip at a time, so that no single mapping is larger than a strip
+	private final File parentFile;
+	private final FileChannel parents;
+	private final MappedByteBuffer[] parentStrips;
+	
+	// Row length of both files, and the current image dimensions
+	private final int stride;
+	private int columns;
+	private final int rows;
+	
+	private final int stripHeight;
+	
+	// The pixels of a strip, with the row above and below it, and the byte buffer they are
+	// moved to and from the pixel file through
+	private final int[] strip;
+	private final ByteBuffer stripBytes;
+	
+	// Energies of the row being relaxed
+	private final int[] rowEnergies;
+	
+	// Minimum path costs of the previous and current row, with sentinels either side
+	private long[] previousDistances;
+	private long[] currentDistances;
+	
+	// Create a streaming carver for the given image file, using strips of the default height
+	public StreamingSeamCarver(File image) throws IOException{
+		this(image, DEFAULT_STRIP_HEIGHT);
+	}
+	
+	// Create a streaming carver for the given image file. Raster and PNG files are copied a
+	// strip at a time into the temporary pixel file, so they are never held in memory whole.
+	// Other images are decoded whole once, if they fit in memory, and then copied a strip at a time
+	public StreamingSeamCarver(File image, int stripHeight) throws IOException{
+		this(readDimensions(image), stripHeight);
+		
+		try{
+			if(RasterFile.isRasterFile(image))
+				copyRaster(image);
+			else if(PngRowReader.isStreamable(image))
+				copyPng(image);
+			else
+				copyDecoded(image);
+		} catch(IOException | RuntimeException e){
+			close();
+			throw e;
+		}
+	}
+	
+	// Create a streaming carver over a copy of the given picture, mostly useful for checking the
+	// streaming carver against SeamCarver on images that do fit in memory
+	public StreamingSeamCarver(Picture picture, int stripHeight) throws IOException{
+		this(new int[] {picture.width(), picture.height()}, stripHeight);
+		
+		try{
+			for(int from = 0; from < rows; from += this.stripHeight){
+				int count = Math.min(this.stripHeight, rows - from);
+				
+				for(int row = 0; row < count; row++){
+					picture.getRGB(0, from + row, columns, strip, row * stride);
+				}
+				writeRows(from, count, 0);
+			}
+		} catch(IOException | RuntimeException e){
+			close();
+			throw e;
+		}
+	}
+	
+	// Create a streaming carver for an image of the given width and height, with empty
+	// temporary files
+	private StreamingSeamCarver(int[] dimensions, int stripHeight) throws IOException{
+		if(stripHeight < 1)
+			throw new IllegalArgumentException("Strip height must be at least 1");
+		
+		this.stride = dimensions[0];
+		this.columns = dimensions[0];
+		this.rows = dimensions[1];
+		this.stripHeight = Math.min(stripHeight, rows);
+		
+		this.strip = new int[(this.stripHeight + 2) * stride];
+		this.stripBytes = ByteBuffer.allocateDirect(strip.length * 4).order(ByteOrder.nativeOrder());
+		this.rowEnergies = new int[stride];
+		this.previousDistances = new long[stride + 2];
+		this.currentDistances = new long[stride + 2];
+		
+		this.pixelFile = File.createTempFile("seam-pixels", ".tmp");
+		this.parentFile = File.createTempFile("seam-parents", ".tmp");
+		this.pixels = new RandomAccessFile(pixelFile, "rw").getChannel();
+		this.parents = new RandomAccessFile(parentFile, "rw").getChannel();
+		this.parentStrips = new MappedByteBuffer[(rows + this.stripHeight - 1) / this.stripHeight];
+	}
+	
+	/*
+	 * Copies a raster file a strip at a time from its mapped pages into the pixel file
+	 */
+	private void copyRaster(File image) throws IOException{
+		try(RasterFile raster = RasterFile.open(image)){
+			for(int from = 0; from < rows; from += stripHeight){
+				int count = Math.min(stripHeight, rows - from);
+				raster.readRows(from, count, strip, 0);
+				writeRows(from, count, 0);
+			}
+		}
+	}
+	
+	/*
+	 * Decodes a PNG file a strip at a time into the pixel file
+	 */
+	private void copyPng(File image) throws IOException{
+		try(PngRowReader png = new PngRowReader(image)){
+			for(int from = 0; from < rows; from += stripHeight){
+				int count = Math.min(stripHeight, rows - from);
+				png.readRows(count, strip, 0, stride);
+				writeRows(from, count, 0);
+			}
+		}
+	}
+	
+	/*
+	 * Decodes an image whole and copies it a strip at a time into the pixel file, refusing
+	 * images whose decoded pixels would take more than half the memory left on the heap
+	 */
+	private void copyDecoded(File image) throws IOException{
+		Runtime runtime = Runtime.getRuntime();
+		long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+		
+		if(4L * columns * rows > available / 2)
+			throw new IOException("Image is too large to decode in memory: " + image + " is " + columns + "x" + rows
+					+ ", convert it to a PNG or raster file to carve it a strip at a time");
+		
+		try(ImageInputStream input = ImageIO.createImageInputStream(image)){
+			ImageReader reader = reader(image, input);
+			
+			try{
+				reader.setInput(input, true, true);
+				BufferedImage decoded = reader.read(0);
+				
+				for(int from = 0; from < rows; from += stripHeight){
+					int count = Math.min(stripHeight, rows - from);
+					decoded.getRGB(0, from, columns, count, strip, 0, stride);
+					writeRows(from, count, 0);
+				}
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+	
+	/*
+	 * Returns an image reader for the given open image file
+	 */
+	private static ImageReader reader(File image, ImageInputStream input) throws IOException{
+		if(input == null)
+			throw new IOException("Could not open " + image);
+		
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+		
+		if(!readers.hasNext())
+			throw new IOException("Unsupported image format: " + image);
+		
+		return readers.next();
+	}
+	
+	/*
+	 * Returns the width and height of the given image file, read from its header
+	 */
+	private static int[] readDimensions(File image) throws IOException{
+		if(RasterFile.isRasterFile(image)){
+			try(RasterFile raster = RasterFile.open(image)){
+				return new int[] {raster.width(), raster.height()};
+			}
+		}
+		
+		try(ImageInputStream input = ImageIO.createImageInputStream(image)){
+			ImageReader reader = reader(image, input);
+			
+			try{
+				reader.setInput(input, true, true);
+				return new int[] {reader.getWidth(0), reader.getHeight(0)};
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+	
+	/*
+	 * Returns the width of the current image
+	 */
+	public int width(){
+		return columns;
+	}
+	
+	/*
+	 * Returns the height of the current image
+	 */
+	public int height(){
+		return rows;
+	}
+	
+	/*
+	 * Reads the given row of the current image into dst, starting at offset
+	 */
+	public void getRow(int row, int[] dst, int offset) throws IOException{
+		if(row < 0 || row >= rows)
+			throw new IndexOutOfBoundsException("Row must be within image dimension bounds");
+		
+		if(offset < 0 || offset + columns > dst.length)
+			throw new IndexOutOfBoundsException("Row does not fit in the destination array");
+		
+		readRows(row, 1, 0);
+		System.arraycopy(strip, 0, dst, offset, columns);
+	}
+	
+	/*
+	 * Returns a picture of the current image. Only for images that fit in memory
+	 */
+	public Picture picture() throws IOException{
+		Picture picture = new Picture(columns, rows);
+		int[] row = new int[columns];
+		
+		for(int r = 0; r < rows; r++){
+			getRow(r, row, 0);
+			picture.setRGB(0, r, columns, row, 0);
+		}
+		return picture;
+	}
+	
+	/*
+	 * Writes the current image to the given raster file a strip at a time
+	 */
+	public void save(File file) throws IOException{
+		try(RasterFile raster = RasterFile.create(file, columns, rows)){
+			for(int from = 0; from < rows; from += stripHeight){
+				int count = Math.min(stripHeight, rows - from);
+				readRows(from, count, 0);
+				
+				for(int r = 0; r < count; r++){
+					raster.writeRows(from + r, 1, strip, r * stride);
+				}
+			}
+		}
+	}
+	
+	/*
+	 * Removes the given number of minimum cost vertical seams, one at a time
+	 */
+	public void removeVerticalSeams(int k) throws IOException{
+		if(k < 0 || k >= columns)
+			throw new IllegalArgumentException("Number of seams must be between 0 and the image width minus 1");
+		
+		for(int i = 0; i < k; i++){
+			int bottomCol = findVerticalSeam();
+			removeVerticalSeam(bottomCol);
+		}
+	}
+	
+	/*
+	 * First pass: computes the distance graph a strip at a time, writing the parent offsets to
+	 * the parent file. Returns the bottom pixel of the minimum cost seam
+	 */
+	private int findVerticalSeam() throws IOException{
+		for(int from = 0; from < rows; from += stripHeight){
+			int count = Math.min(stripHeight, rows - from);
+			readStrip(from, count);
+			
+			MappedByteBuffer parentStrip = parentStrip(from / stripHeight);
+			
+			for(int r = 0; r < count; r++){
+				relaxRow(from + r, r + 1, count + 2, parentStrip, r * stride);
+			}
+		}
+		
+		int minPathCol = 0;
+		
+		for(int c = 1; c < columns; c++){
+			if(previousDistances[c+1] < previousDistances[minPathCol+1])
+				minPathCol = c;
+		}
+		return minPathCol;
+	}
+	
+	/*
+	 * Computes the distances of one image row from the previous row's distances. The row is
+	 * row stripRow of the strip buffer, which holds stripRows rows including the rows either
+	 * side of the strip
+	 */
+	private void relaxRow(int row, int stripRow, int stripRows, MappedByteBuffer parentStrip, int parentOffset){
+		long[] previous = previousDistances;
+		long[] current = currentDistances;
+		
+		current[0] = Long.MAX_VALUE;
+		current[columns+1] = Long.MAX_VALUE;
+		
+		SeamCarver.energyRow(strip, stride, columns, stripRows, stripRow, 0, columns, rowEnergies, 0);
+		
+		for(int c = 0; c < columns; c++){
+			int energy = rowEnergies[c];
+			
+			if(row == 0){
+				current[c+1] = energy;
+				continue;
+			}
+			
+			// Pick the cheapest predecessor, ties going to the left-most
+			long minDist = previous[c];
+			byte parent = -1;
+			
+			if(previous[c+1] < minDist){
+				minDist = previous[c+1];
+				parent = 0;
+			}
+			
+			if(previous[c+2] < minDist){
+				minDist = previous[c+2];
+				parent = 1;
+			}
+			
+			current[c+1] = minDist + energy;
+			parentStrip.put(parentOffset + c, parent);
+		}
+		
+		previousDistances = current;
+		currentDistances = previous;
+	}
+	
+	/*
+	 * Second pass: traces the seam ending at the given bottom pixel up the image a strip at a
+	 * time, removing it from each strip's rows as it goes
+	 */
+	private void removeVerticalSeam(int bottomCol) throws IOException{
+		int col = bottomCol;
+		int lastStrip = (rows - 1) / stripHeight;
+		
+		for(int s = lastStrip; s >= 0; s--){
+			int from = s * stripHeight;
+			int count = Math.min(stripHeight, rows - from);
+			readRows(from, count, 0);
+			
+			MappedByteBuffer parentStrip = parentStrip(s);
+			
+			for(int r = count-1; r >= 0; r--){
+				int offset = r * stride;
+				System.arraycopy(strip, offset + col + 1, strip, offset + col, columns - col - 1);
+				
+				if(from + r > 0)
+					col += parentStrip.get(offset + col);
+			}
+			writeRows(from, count, 0);
+		}
+		columns--;
+	}
+	
+	/*
+	 * Reads the given rows into the strip buffer from its second row on, with the rows above and
+	 * below them in the first row and after the last. The image wraps around at the top and
+	 * bottom, as in SeamCarver's energy function
+	 */
+	private void readStrip(int from, int count) throws IOException{
+		int above = (from == 0) ? rows-1 : from-1;
+		int below = (from + count == rows) ? 0 : from + count;
+		
+		if(from > 0 && from + count < rows){
+			readRows(above, count + 2, 0);
+		} else {
+			readRows(above, 1, 0);
+			readRows(from, count, 1);
+			readRows(below, 1, count + 1);
+		}
+	}
+	
+	/*
+	 * Reads count rows of the pixel file, starting at the given row, into the strip buffer
+	 * starting at the given strip row
+	 */
+	private void readRows(int row, int count, int stripRow) throws IOException{
+		stripBytes.clear().limit(count * stride * 4);
+		long position = (long) row * stride * 4;
+		
+		while(stripBytes.hasRemaining()){
+			if(pixels.read(stripBytes, position + stripBytes.position()) < 0)
+				throw new IOException("Unexpected end of pixel file");
+		}
+		
+		stripBytes.flip();
+		stripBytes.asIntBuffer().get(strip, stripRow * stride, count * stride);
+	}
+	
+	/*
+	 * Writes count rows of the strip buffer, starting at the given strip row, to the pixel file
+	 * starting at the given row
+	 */
+	private void writeRows(int row, int count, int stripRow) throws IOException{
+		stripBytes.clear().limit(count * stride * 4);
+		IntBuffer ints = stripBytes.asIntBuffer();
+		ints.put(strip, stripRow * stride, count * stride);
+		
+		long position = (long) row * stride * 4;
+		
+		while(stripBytes.hasRemaining()){
+			pixels.write(stripBytes, position + stripBytes.position());
+		}
+	}
+	
+	/*
+	 * Returns the mapping of the parent file for the given strip, mapping it on first use
+	 */
+	private MappedByteBuffer parentStrip(int s) throws IOException{
+		if(parentStrips[s] == null){
+			int from = s * stripHeight;
+			int count = Math.min(stripHeight, rows - from);
+			parentStrips[s] = parents.map(FileChannel.MapMode.READ_WRITE, (long) from * stride, (long) count * stride);
+		}
+		return parentStrips[s];
+	}
+	
+	/*
+	 * Closes and deletes the temporary files. Mapped strips of the parent file are released
+	 * once they are garbage collected, so the parent file is deleted on exit if it cannot be
+	 * deleted now
+	 */
+	@Override
+	public void close() throws IOException{
+		pixels.close();
+		parents.close();
+		
+		if(!pixelFile.delete())
+			pixelFile.deleteOnExit();
+		
+		if(!parentFile.delete())
+			parentFile.deleteOnExit();
+	}
+}